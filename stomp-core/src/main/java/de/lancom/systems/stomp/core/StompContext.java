@@ -1,34 +1,31 @@
 package de.lancom.systems.stomp.core;
 
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.lancom.systems.defer.DeferredFactory;
-import de.lancom.systems.defer.Promise;
-import de.lancom.systems.defer.callback.ExecutorCallback;
+import de.lancom.systems.stomp.core.client.StompPoolSelection;
 import de.lancom.systems.stomp.core.connection.StompConnection;
-import de.lancom.systems.stomp.core.connection.StompFrameAwaitJob;
-import de.lancom.systems.stomp.core.connection.StompFrameContext;
-import de.lancom.systems.stomp.core.connection.StompFrameTransmitJob;
-import de.lancom.systems.stomp.core.connection.StompSubscription;
+import de.lancom.systems.stomp.core.connection.StompEndpoint;
+import de.lancom.systems.stomp.core.connection.StompOverflowPolicy;
 import de.lancom.systems.stomp.core.util.NamedDaemonThreadFactory;
 import de.lancom.systems.stomp.core.wire.StompAction;
 import de.lancom.systems.stomp.core.wire.StompFrame;
-import de.lancom.systems.stomp.core.wire.StompHeader;
-import de.lancom.systems.stomp.core.wire.StompSerializer;
 import de.lancom.systems.stomp.core.wire.StompVersion;
 import de.lancom.systems.stomp.core.wire.frame.AckFrame;
 import de.lancom.systems.stomp.core.wire.frame.ConnectFrame;
@@ -47,18 +44,35 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class StompContext {
-    private static final long RECONNECT_TIMEOUT = 1000;
+    private static final int DEFAULT_EVENT_LOOPS = 1;
     private static final long DEFAULT_TIMEOUT = 10000;
+    private static final long DEFAULT_WRITE_BUFFER_LIMIT = 1024 * 1024;
+    private static final int DEFAULT_DISPATCH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_DISPATCH_QUEUE_LIMIT = 10000;
+    private static final int DEFAULT_DISPATCH_HIGH_WATER_MARK = 5000;
+    private static final int DEFAULT_DISPATCH_LOW_WATER_MARK = 2500;
+    private static final long DISPATCH_KEEP_ALIVE = 60;
+    private static final int DEFAULT_ACK_COALESCE_SIZE = 64;
+    private static final long DEFAULT_ACK_COALESCE_LINGER = 10;
+    private static final long DEFAULT_RECEIPT_LINGER = 10;
+    private static final int DEFAULT_CONTROL_FRAME_BURST = 16;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final long DEFAULT_RECONNECT_DELAY = 1000;
+    private static final long DEFAULT_RECONNECT_DELAY_MAX = 30000;
 
     private static final ThreadFactory THREAD_FACTORY = new NamedDaemonThreadFactory("Stomp");
+    private static final ThreadFactory DISPATCH_THREAD_FACTORY = new NamedDaemonThreadFactory("Stomp Dispatch");
+    private static final ThreadFactory RESOLVE_THREAD_FACTORY = new NamedDaemonThreadFactory("Stomp Resolve");
     private static final ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool(THREAD_FACTORY);
+    private static final ExecutorService RESOLVE_EXECUTOR = Executors.newCachedThreadPool(RESOLVE_THREAD_FACTORY);
 
     private final Map<String, Class<? extends StompFrame>> frameClasses = new HashMap<>();
     private final List<StompConnection> connections = new CopyOnWriteArrayList<>();
+    private final List<StompEventLoop> eventLoops = new ArrayList<>();
+    private final AtomicInteger eventLoopCounter = new AtomicInteger();
     private final AtomicBoolean running = new AtomicBoolean();
-
-    @Getter
-    private final Selector selector;
+    private final Map<String, StompEndpoint.Statistics> endpointStatistics = new ConcurrentHashMap<>();
+    private volatile ThreadPoolExecutor dispatchExecutor;
 
     @Getter
     private final DeferredFactory deferred;
@@ -71,6 +85,89 @@ public class StompContext {
     @Setter
     private boolean receiptsEnabled = true;
 
+    @Getter
+    @Setter
+    private int receiptInterval = 1;
+
+    @Getter
+    @Setter
+    private long receiptLinger = DEFAULT_RECEIPT_LINGER;
+
+    @Getter
+    @Setter
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    @Getter
+    @Setter
+    private long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+
+    @Getter
+    @Setter
+    private long reconnectDelayMax = DEFAULT_RECONNECT_DELAY_MAX;
+
+    @Getter
+    @Setter
+    private boolean pipelinedRecovery = true;
+
+    @Getter
+    @Setter
+    private long heartBeatOutgoing;
+
+    @Getter
+    @Setter
+    private long heartBeatIncoming;
+
+    @Getter
+    @Setter
+    private long writeBufferLimit = DEFAULT_WRITE_BUFFER_LIMIT;
+
+    @Getter
+    @Setter
+    private int transmitQueueLimit = Integer.MAX_VALUE;
+
+    @Getter
+    @Setter
+    private long transmitQueueBytes = Long.MAX_VALUE;
+
+    @Getter
+    @Setter
+    private StompOverflowPolicy overflowPolicy = StompOverflowPolicy.FAIL;
+
+    @Getter
+    @Setter
+    private int controlFrameBurst = DEFAULT_CONTROL_FRAME_BURST;
+
+    @Getter
+    @Setter
+    private int connectionPoolSize = 1;
+
+    @Getter
+    @Setter
+    private StompPoolSelection connectionPoolSelection = StompPoolSelection.ROUND_ROBIN;
+
+    @Getter
+    private int dispatchThreads = DEFAULT_DISPATCH_THREADS;
+
+    @Getter
+    @Setter
+    private int dispatchQueueLimit = DEFAULT_DISPATCH_QUEUE_LIMIT;
+
+    @Getter
+    @Setter
+    private int dispatchHighWaterMark = DEFAULT_DISPATCH_HIGH_WATER_MARK;
+
+    @Getter
+    @Setter
+    private int dispatchLowWaterMark = DEFAULT_DISPATCH_LOW_WATER_MARK;
+
+    @Getter
+    @Setter
+    private int ackCoalesceSize = DEFAULT_ACK_COALESCE_SIZE;
+
+    @Getter
+    @Setter
+    private long ackCoalesceLinger = DEFAULT_ACK_COALESCE_LINGER;
+
     @Getter
     @Setter
     private List<StompVersion> stompVersions = Arrays.asList(
@@ -94,9 +191,24 @@ public class StompContext {
      * Default constructor.
      */
     public StompContext() {
+        this(DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * Create a new stomp context using the given amount of event loops.
+     * Connections are distributed across the event loops and stay with their event loop for their lifetime.
+     *
+     * @param eventLoopCount amount of event loops
+     */
+    public StompContext(final int eventLoopCount) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
 
         try {
-            this.selector = Selector.open();
+            for (int index = 0; index < eventLoopCount; index++) {
+                this.eventLoops.add(new StompEventLoop(this, index + 1));
+            }
             this.deferred = new DeferredFactory(EXECUTOR_SERVICE);
 
             // register client frames
@@ -192,6 +304,77 @@ public class StompContext {
         return Collections.unmodifiableList(this.connections);
     }
 
+    /**
+     * Get the endpoint statistics shared by all connections to the given broker address.
+     *
+     * @param host host
+     * @param port port
+     * @return statistics
+     */
+    public StompEndpoint.Statistics getEndpointStatistics(final String host, final int port) {
+        return this.endpointStatistics.computeIfAbsent(host + ":" + port, k -> new StompEndpoint.Statistics());
+    }
+
+    /**
+     * Get event loops.
+     *
+     * @return event loops
+     */
+    public List<StompEventLoop> getEventLoops() {
+        return Collections.unmodifiableList(this.eventLoops);
+    }
+
+    /**
+     * Select the event loop for a new connection.
+     *
+     * @return event loop
+     */
+    public StompEventLoop nextEventLoop() {
+        final int index = Math.floorMod(this.eventLoopCounter.getAndIncrement(), this.eventLoops.size());
+        return this.eventLoops.get(index);
+    }
+
+    /**
+     * Set amount of threads running subscription handlers.
+     * The dispatch pool is created when the context is started, the amount can not be changed afterwards.
+     *
+     * @param dispatchThreads amount of threads
+     */
+    public void setDispatchThreads(final int dispatchThreads) {
+        if (dispatchThreads < 1) {
+            throw new IllegalArgumentException("At least one dispatch thread is required");
+        }
+        if (this.isRunning()) {
+            throw new IllegalStateException("Dispatch threads can not be changed while the context is running");
+        }
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * Get the pool that runs subscription handlers.
+     * Each subscription uses at most one of its threads at a time to keep the order of its frames.
+     * The pool is created by {@link #start()} and shut down by {@link #stop()}, a stopped pool rejects tasks.
+     *
+     * @return dispatch executor
+     */
+    public Executor getDispatchExecutor() {
+        final Executor executor = this.dispatchExecutor;
+        if (executor == null) {
+            throw new IllegalStateException("Stomp context has not been started");
+        }
+        return executor;
+    }
+
+    /**
+     * Get the executor that resolves host names of connections.
+     * Name resolution may block, it is therefore kept away from the event loops.
+     *
+     * @return resolve executor
+     */
+    public Executor getResolveExecutor() {
+        return RESOLVE_EXECUTOR;
+    }
+
     /**
      * Add a connection.
      *
@@ -199,6 +382,7 @@ public class StompContext {
      */
     public void addConnection(final StompConnection connection) {
         this.connections.add(connection);
+        connection.getEventLoop().addConnection(connection);
     }
 
     /**
@@ -208,6 +392,16 @@ public class StompContext {
      */
     public void removeConnection(final StompConnection connection) {
         this.connections.remove(connection);
+        connection.getEventLoop().removeConnection(connection);
+    }
+
+    /**
+     * Check if the context has been started and not been stopped yet.
+     *
+     * @return running
+     */
+    public boolean isRunning() {
+        return running.get();
     }
 
     /**
@@ -215,223 +409,59 @@ public class StompContext {
      */
     public void start() {
         if (running.compareAndSet(false, true)) {
-            this.getDeferred().defer(new FrameTransmitter());
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    this.dispatchThreads,
+                    this.dispatchThreads,
+                    DISPATCH_KEEP_ALIVE,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    DISPATCH_THREAD_FACTORY
+            );
+            executor.allowCoreThreadTimeOut(true);
+            this.dispatchExecutor = executor;
+            for (final StompEventLoop eventLoop : this.eventLoops) {
+                eventLoop.prepare();
+                this.getDeferred().defer(eventLoop);
+            }
         }
     }
 
     /**
      * Stop the client and close all connections.
+     * The event loops disconnect their connections first, the dispatch threads are shut down once the event loops
+     * returned, so acks, nacks and receipts of the closing connections can still be processed.
+     * Waits at most for the timeout of this context.
      */
     public void stop() {
         running.set(false);
-    }
-
-    /**
-     * Frame receiver job.
-     */
-    private final class FrameTransmitter implements ExecutorCallback {
-
-        @Override
-        public void execute() {
-            while (running.get()) {
-                try {
-                    selector.select(RECONNECT_TIMEOUT);
-
-                    final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                    if (iterator.hasNext()) {
-                        final SelectionKey key = iterator.next();
-                        if (key.isReadable()) {
-                            final StompConnection connection = (StompConnection) key.attachment();
-                            readFrames(connection);
-                        }
-                        iterator.remove();
-                    }
-
-                    for (final StompConnection connection : connections) {
-                        if (connection.getState() == StompConnection.State.DISCONNECTED) {
-                            if (!connection.getTransmitJobs().isEmpty()) {
-                                connection.connect();
-                            }
-                        } else {
-                            writeFrames(connection);
-                        }
-                    }
-                } catch (final Exception ex) {
-                    if (log.isWarnEnabled()) {
-                        log.warn("Error processing stomp messages", ex);
-                    }
-                }
-            }
-
-            final List<Promise<Void>> promises = new ArrayList<>();
-            for (final StompConnection connection : connections) {
-                promises.add(connection.disconnect());
-            }
-            final Iterator<Promise<Void>> iterator = promises.iterator();
-            while (iterator.hasNext()) {
-                iterator.next().get();
-                iterator.remove();
-            }
-        }
-
-        /**
-         * Register subscriptions of given connection if required.
-         *
-         * @param connection connection
-         */
-        private void registerSubscriptions(final StompConnection connection) {
-            for (final StompSubscription subscription : connection.getSubscriptionsForRegistration()) {
-                subscription.subscribe();
-            }
+        for (final StompEventLoop eventLoop : this.eventLoops) {
+            eventLoop.wakeup();
         }
 
-        /**
-         * Write frames to connection.
-         *
-         * @param connection connection
-         */
-        private void writeFrames(final StompConnection connection) {
-            final StompSerializer serializer = connection.getSerializer();
-
-            if (serializer != null) {
-                final Iterator<StompFrameTransmitJob> transmitIterator = connection.getTransmitJobs().iterator();
-                while (transmitIterator.hasNext()) {
-                    final StompFrameTransmitJob job = transmitIterator.next();
-                    final StompFrameContext context = job.getContext();
-                    try {
-                        if (job.getCondition().getAsBoolean()) {
-                            connection.applyInterceptors(context);
-                            serializer.writeFrame(context.getFrame());
-
-                            log.debug("Sent frame to {} {\n\t{}\n}", connection, context.getFrame());
-
-                            transmitIterator.remove();
-                            if (job.getDeferred() != null) {
-                                job.getDeferred().resolve(context);
-                            }
-                        }
-                    } catch (final Exception ex) {
-                        connection.close();
-                        if (log.isErrorEnabled()) {
-                            log.error(String.format(
-                                    "Failed to write %s to %s, retrying",
-                                    context.getFrame(),
-                                    connection.toString()
-                            ), ex);
-                        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        try {
+            for (final StompEventLoop eventLoop : this.eventLoops) {
+                if (!eventLoop.isEventLoopThread()) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (!eventLoop.awaitTermination(remaining, TimeUnit.NANOSECONDS) && log.isWarnEnabled()) {
+                        log.warn("Event loop {} did not stop in time", eventLoop.getId());
                     }
                 }
             }
-        }
 
-        /**
-         * Read frames from connection.
-         *
-         * @param connection connection
-         */
-        private void readFrames(final StompConnection connection) {
-            if (connection.getDeserializer() != null) {
-                try {
-                    while (true) {
-                        StompFrame frame = connection.getDeserializer().readFrame();
-
-                        if (frame != null) {
-                            log.debug("Got frame for {} {\n\t{}\n}", connection, frame);
-
-                            final StompFrameContext context = new StompFrameContext(frame);
-                            connection.applyInterceptors(context);
-
-                            boolean handled = false;
-                            if (!handled) {
-                                final StompSubscription subscription;
-
-                                final String subscriptionId = frame.getHeader(StompHeader.SUBSCRIPTION);
-                                if (subscriptionId != null) {
-                                    subscription = connection.getSubscription(subscriptionId);
-                                } else {
-                                    subscription = null;
-                                }
-
-                                if (subscription != null) {
-                                    deferred.defer(() -> {
-                                        boolean success = false;
-                                        try {
-                                            success = subscription.getHandler().handle(context);
-                                        } catch (final Exception ex) {
-                                            success = false;
-                                        }
-
-                                        final String ack = context.getFrame().getHeader(StompHeader.ACK);
-                                        if (ack != null) {
-                                            if (success) {
-                                                subscription.getConnection()
-                                                        .transmitFrame(new AckFrame(ack))
-                                                        .fail(ex -> {
-                                                            if (log.isErrorEnabled()) {
-                                                                log.error("Could not send ack frame", ex);
-                                                            }
-                                                        });
-                                            } else {
-                                                subscription.getConnection()
-                                                        .transmitFrame(new NackFrame(ack))
-                                                        .fail(ex -> {
-                                                            if (log.isErrorEnabled()) {
-                                                                log.error("Could not send nack frame", ex);
-                                                            }
-                                                        });
-                                            }
-                                        }
-                                    });
-                                    handled = true;
-                                }
-                            }
-                            if (!handled) {
-                                final Iterator<StompFrameAwaitJob> awaitIterator = connection.getAwaitJobs().iterator();
-                                while (!handled && awaitIterator.hasNext()) {
-                                    final StompFrameAwaitJob job = awaitIterator.next();
-                                    if (job.getHandler().handle(context)) {
-                                        awaitIterator.remove();
-                                        job.getDeferred().resolve(context);
-                                        handled = true;
-                                    }
-                                }
-                            }
-
-                            if (!handled && log.isWarnEnabled()) {
-                                log.warn("Frame {} has not been processed", frame);
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                } catch (final Exception ex) {
-                    connection.close();
-                    if (log.isErrorEnabled()) {
-                        log.error(String.format(
-                                "Failed to read frame from %s",
-                                connection.toString()
-                        ), ex);
-                    }
+            final ThreadPoolExecutor executor = this.dispatchExecutor;
+            if (executor != null) {
+                executor.shutdown();
+                final long remaining = deadline - System.nanoTime();
+                if (!executor.awaitTermination(remaining, TimeUnit.NANOSECONDS) && log.isWarnEnabled()) {
+                    log.warn("Dispatch threads did not stop in time");
                 }
             }
-        }
-
-        /**
-         * Reject invalid await jobs.
-         *
-         * @param connection connection
-         */
-        private void rejectInvalidAwaitJobs(final StompConnection connection) {
-            final Iterator<StompFrameAwaitJob> awaitIterator = connection.getAwaitJobs().iterator();
-            while (awaitIterator.hasNext()) {
-                final StompFrameAwaitJob job = awaitIterator.next();
-                if (job.getValidUntil() < System.currentTimeMillis()) {
-                    awaitIterator.remove();
-                    if (log.isDebugEnabled()) {
-                        log.debug("Rejected wait job for " + connection);
-                    }
-                    job.getDeferred().reject(new TimeoutException());
-                }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            final ThreadPoolExecutor executor = this.dispatchExecutor;
+            if (executor != null) {
+                executor.shutdown();
             }
         }
     }
@@ -0,0 +1,473 @@
+package de.lancom.systems.stomp.core;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import de.lancom.systems.defer.callback.ExecutorCallback;
+import de.lancom.systems.stomp.core.connection.StompConnection;
+import de.lancom.systems.stomp.core.connection.StompFrameAwaitJob;
+import de.lancom.systems.stomp.core.connection.StompFrameContext;
+import de.lancom.systems.stomp.core.connection.StompFrameTransmitJob;
+import de.lancom.systems.stomp.core.connection.StompSubscription;
+import de.lancom.systems.stomp.core.connection.StompTransmitQueue;
+import de.lancom.systems.stomp.core.util.TimingWheel;
+import de.lancom.systems.stomp.core.wire.StompFrame;
+import de.lancom.systems.stomp.core.wire.StompHeader;
+import de.lancom.systems.stomp.core.wire.StompSerializer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Event loop that reads and writes frames for the connections pinned to its selector.
+ * A connection is assigned to exactly one event loop for its whole lifetime.
+ */
+@Slf4j
+public class StompEventLoop implements ExecutorCallback {
+    private static final long MAINTENANCE_INTERVAL = 1000;
+    private static final long TIMEOUT_TICK = 10;
+
+    private final StompContext stompContext;
+    private final List<StompConnection> connections = new CopyOnWriteArrayList<>();
+    private final Set<StompConnection> writeRequests = ConcurrentHashMap.newKeySet();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final TimingWheel timeouts = new TimingWheel(TIMEOUT_TICK, TimeUnit.MILLISECONDS);
+    private final AtomicLong expirations = new AtomicLong();
+
+    @Getter
+    private final int id;
+
+    @Getter
+    private final Selector selector;
+    private volatile Thread thread;
+    private volatile CountDownLatch termination = new CountDownLatch(0);
+    private long nextMaintenance;
+
+    /**
+     * Create a new event loop with its own selector.
+     *
+     * @param stompContext stomp context
+     * @param id event loop id
+     */
+    public StompEventLoop(final StompContext stompContext, final int id) {
+        this.stompContext = stompContext;
+        this.id = id;
+        try {
+            this.selector = Selector.open();
+        } catch (final Exception ex) {
+            throw new RuntimeException("Failed to initialize stomp event loop", ex);
+        }
+    }
+
+    /**
+     * Get connections pinned to this event loop.
+     *
+     * @return connections
+     */
+    public List<StompConnection> getConnections() {
+        return Collections.unmodifiableList(this.connections);
+    }
+
+    /**
+     * Pin a connection to this event loop.
+     *
+     * @param connection connection
+     */
+    public void addConnection(final StompConnection connection) {
+        this.connections.add(connection);
+    }
+
+    /**
+     * Remove a connection from this event loop.
+     *
+     * @param connection connection
+     */
+    public void removeConnection(final StompConnection connection) {
+        this.connections.remove(connection);
+        this.writeRequests.remove(connection);
+    }
+
+    /**
+     * Request processing of the transmit queue of the given connection.
+     *
+     * @param connection connection
+     */
+    public void requestWrite(final StompConnection connection) {
+        this.writeRequests.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Request reading frames of the given connection on the event loop thread.
+     * Used when reading resumes, since frames buffered by the deserializer do not raise read readiness.
+     *
+     * @param connection connection
+     */
+    public void requestRead(final StompConnection connection) {
+        this.submit(() -> this.readFrames(connection));
+    }
+
+    /**
+     * Schedule a task that is run by this event loop once the given deadline has passed.
+     * The task returns whether it expired something, those expirations are counted.
+     * Since the event loop sleeps until the next deadline it already knows of, it is woken up if called by another
+     * thread.
+     *
+     * @param deadline deadline based on {@link System#nanoTime()}
+     * @param task task
+     * @return timing wheel entry that can be used for cancellation
+     */
+    public TimingWheel.Entry schedule(final long deadline, final BooleanSupplier task) {
+        final TimingWheel.Entry entry = this.timeouts.schedule(deadline, task);
+        if (!this.isEventLoopThread()) {
+            this.selector.wakeup();
+        }
+        return entry;
+    }
+
+    /**
+     * Run the given task on the event loop thread.
+     * Tasks that touch the selector, like registering channels, have to be run this way.
+     *
+     * @param task task
+     */
+    public void submit(final Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Get amount of promises that have been rejected by this event loop because their deadline passed.
+     *
+     * @return expirations
+     */
+    public long getExpirations() {
+        return this.expirations.get();
+    }
+
+    /**
+     * Wake up the selector of this event loop.
+     */
+    public void wakeup() {
+        this.selector.wakeup();
+    }
+
+    /**
+     * Check if the current thread runs this event loop.
+     *
+     * @return true if called by the event loop thread
+     */
+    public boolean isEventLoopThread() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    @Override
+    public void execute() {
+        this.thread = Thread.currentThread();
+        try {
+            while (stompContext.isRunning()) {
+                this.poll();
+            }
+
+            final AtomicInteger pending = new AtomicInteger(connections.size());
+            for (final StompConnection connection : connections) {
+                connection.disconnect().always(() -> {
+                    pending.decrementAndGet();
+                });
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stompContext.getTimeout());
+            while (pending.get() > 0 && System.nanoTime() - deadline < 0) {
+                this.poll();
+            }
+            if (pending.get() > 0 && log.isWarnEnabled()) {
+                log.warn("Stopped event loop {} before {} connections were disconnected", id, pending.get());
+            }
+        } finally {
+            this.termination.countDown();
+        }
+    }
+
+    /**
+     * Mark this event loop as started, {@link #awaitTermination(long, TimeUnit)} waits for it from now on.
+     * Has to be called before the event loop is handed to an executor.
+     */
+    public void prepare() {
+        this.termination = new CountDownLatch(1);
+    }
+
+    /**
+     * Wait until the event loop has disconnected its connections and returned after the context has been stopped.
+     *
+     * @param timeout timeout
+     * @param unit timeout unit
+     * @return true if the event loop has returned, false if the timeout elapsed before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return this.termination.await(timeout, unit);
+    }
+
+    /**
+     * Select ready connections once and process them, queued tasks, write requests and expired timeouts.
+     */
+    private void poll() {
+        try {
+            final long delay = timeouts.getDelay(System.nanoTime());
+            if (delay <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.min(MAINTENANCE_INTERVAL, TimeUnit.NANOSECONDS.toMillis(delay - 1) + 1));
+            }
+
+            final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+            while (keyIterator.hasNext()) {
+                final SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+
+                final StompConnection connection = (StompConnection) key.attachment();
+                if (key.isValid() && key.isConnectable()) {
+                    connection.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readFrames(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    writeFrames(connection);
+                }
+            }
+
+            Runnable task = tasks.poll();
+            while (task != null) {
+                task.run();
+                task = tasks.poll();
+            }
+
+            final Iterator<StompConnection> requestIterator = writeRequests.iterator();
+            while (requestIterator.hasNext()) {
+                final StompConnection connection = requestIterator.next();
+                requestIterator.remove();
+                processConnection(connection);
+            }
+
+            final int expired = timeouts.advance(System.nanoTime());
+            if (expired > 0) {
+                expirations.addAndGet(expired);
+                if (log.isDebugEnabled()) {
+                    log.debug("Rejected {} expired promises in event loop {}", expired, id);
+                }
+            }
+
+            if (System.currentTimeMillis() >= this.nextMaintenance) {
+                for (final StompConnection connection : connections) {
+                    processConnection(connection);
+                }
+                this.nextMaintenance = System.currentTimeMillis() + MAINTENANCE_INTERVAL;
+            }
+        } catch (final Exception ex) {
+            if (log.isWarnEnabled()) {
+                log.warn("Error processing stomp messages", ex);
+            }
+        }
+    }
+
+    /**
+     * Connect the given connection if frames are waiting or write pending frames otherwise.
+     * Connections are not connected again while the event loop drains after the context has been stopped.
+     *
+     * @param connection connection
+     */
+    private void processConnection(final StompConnection connection) {
+        if (connection.getState() == StompConnection.State.DISCONNECTED) {
+            if (!connection.getTransmitQueue().isEmpty() && stompContext.isRunning()) {
+                connection.connect();
+            }
+        } else {
+            writeFrames(connection);
+        }
+    }
+
+    /**
+     * Register subscriptions of given connection if required.
+     *
+     * @param connection connection
+     */
+    private void registerSubscriptions(final StompConnection connection) {
+        for (final StompSubscription subscription : connection.getSubscriptionsForRegistration()) {
+            subscription.subscribe();
+        }
+    }
+
+    /**
+     * Write frames to connection.
+     * Frames are taken from the transmit queue until the write buffer limit is reached, the socket is then
+     * watched for write readiness until all serialized frames have been written.
+     * The next writable frame is looked up before a frame is written, so a receipt batch is completed by the last
+     * receipt batched frame of this write and never waits for frames that are not written yet.
+     *
+     * @param connection connection
+     */
+    private void writeFrames(final StompConnection connection) {
+        final StompSerializer serializer = connection.getSerializer();
+
+        if (serializer != null) {
+            final StompTransmitQueue transmitQueue = connection.getTransmitQueue();
+            final Iterator<StompFrameTransmitJob> transmitIterator = transmitQueue.iterator(connection.getState());
+            StompFrameTransmitJob job = null;
+            try {
+                job = nextWritable(transmitIterator);
+                while (job != null && serializer.getPendingBytes() < stompContext.getWriteBufferLimit()) {
+                    final StompFrameContext context = job.getContext();
+                    final StompFrameTransmitJob next = nextWritable(transmitIterator);
+
+                    connection.applyInterceptors(context);
+                    if (job.isReceiptBatched()) {
+                        boolean last = next == null || !next.isReceiptBatched();
+                        last = last || serializer.getPendingBytes() + job.getSize()
+                                >= stompContext.getWriteBufferLimit();
+                        connection.trackReceiptBatch(job, last);
+                    }
+                    serializer.writeFrame(context.getFrame());
+
+                    log.debug("Sent frame to {} {\n\t{}\n}", connection, context.getFrame());
+
+                    transmitQueue.remove(job);
+                    if (job.getDeferred() != null && !job.isReceiptBatched()) {
+                        job.getDeferred().resolve(context);
+                    }
+                    job = next;
+                }
+            } catch (final Exception ex) {
+                connection.close(true);
+                if (log.isErrorEnabled()) {
+                    log.error(String.format(
+                            "Failed to write %s to %s, retrying",
+                            job == null ? "frames" : job.getContext().getFrame(),
+                            connection.toString()
+                    ), ex);
+                }
+                return;
+            }
+
+            try {
+                connection.setWriteInterest(!serializer.flush());
+            } catch (final Exception ex) {
+                connection.close(true);
+                if (log.isErrorEnabled()) {
+                    log.error(String.format(
+                            "Failed to flush frames to %s",
+                            connection.toString()
+                    ), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the next job that may be written now.
+     * Jobs whose promise is already done are removed, jobs whose condition is not met are skipped.
+     *
+     * @param transmitIterator transmit queue iterator
+     * @return job or null if no further job may be written
+     */
+    private static StompFrameTransmitJob nextWritable(final Iterator<StompFrameTransmitJob> transmitIterator) {
+        while (transmitIterator.hasNext()) {
+            final StompFrameTransmitJob job = transmitIterator.next();
+            if (job.getDeferred() != null && job.getDeferred().getPromise().isDone()) {
+                transmitIterator.remove();
+            } else if (job.getCondition() == null || job.getCondition().getAsBoolean()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read frames from connection.
+     *
+     * @param connection connection
+     */
+    private void readFrames(final StompConnection connection) {
+        if (connection.getDeserializer() != null) {
+            try {
+                while (!connection.isReadPaused()) {
+                    StompFrame frame = connection.getDeserializer().readFrame();
+
+                    if (frame != null) {
+                        log.debug("Got frame for {} {\n\t{}\n}", connection, frame);
+
+                        final StompFrameContext context = new StompFrameContext(frame);
+                        connection.applyInterceptors(context);
+
+                        boolean handled = false;
+                        if (!handled) {
+                            final StompSubscription subscription;
+
+                            final String subscriptionId = frame.getHeader(StompHeader.SUBSCRIPTION);
+                            if (subscriptionId != null) {
+                                subscription = connection.getSubscription(subscriptionId);
+                            } else {
+                                subscription = null;
+                            }
+
+                            if (subscription != null) {
+                                subscription.dispatch(context);
+                                handled = true;
+                            }
+                        }
+                        if (!handled) {
+                            final String receiptId = frame.getHeader(StompHeader.RECEIPT_ID);
+                            if (receiptId != null) {
+                                final StompFrameAwaitJob job = connection.getReceiptJobs().remove(receiptId);
+                                if (job != null) {
+                                    job.getDeferred().resolve(context);
+                                    handled = true;
+                                }
+                            }
+                        }
+                        if (!handled) {
+                            final Iterator<StompFrameAwaitJob> awaitIterator = connection.getAwaitJobs().iterator();
+                            while (!handled && awaitIterator.hasNext()) {
+                                final StompFrameAwaitJob job = awaitIterator.next();
+                                if (job.getDeferred().getPromise().isDone()) {
+                                    awaitIterator.remove();
+                                } else if (job.getHandler().handle(context)) {
+                                    awaitIterator.remove();
+                                    job.getDeferred().resolve(context);
+                                    handled = true;
+                                }
+                            }
+                        }
+
+                        if (!handled && log.isWarnEnabled()) {
+                            log.warn("Frame {} has not been processed", frame);
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            } catch (final Exception ex) {
+                connection.close(true);
+                if (log.isErrorEnabled()) {
+                    log.error(String.format(
+                            "Failed to read frame from %s",
+                            connection.toString()
+                    ), ex);
+                }
+            }
+        }
+    }
+
+}
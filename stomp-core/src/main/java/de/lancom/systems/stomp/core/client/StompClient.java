@@ -1,21 +1,26 @@
 package de.lancom.systems.stomp.core.client;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import de.lancom.systems.defer.Promise;
 import de.lancom.systems.stomp.core.StompContext;
 import de.lancom.systems.stomp.core.connection.StompConnection;
+import de.lancom.systems.stomp.core.connection.StompEndpoint;
 import de.lancom.systems.stomp.core.connection.StompFrameContext;
 import de.lancom.systems.stomp.core.connection.StompFrameContextHandler;
 import de.lancom.systems.stomp.core.connection.StompFrameContextInterceptor;
 import de.lancom.systems.stomp.core.connection.StompSubscription;
+import de.lancom.systems.stomp.core.util.ConsistentHashRing;
+import de.lancom.systems.stomp.core.wire.StompAction;
 import de.lancom.systems.stomp.core.wire.StompData;
 import de.lancom.systems.stomp.core.wire.StompFrame;
+import de.lancom.systems.stomp.core.wire.StompHeader;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -23,6 +28,9 @@ import lombok.extern.slf4j.Slf4j;
 /**
  * Stomp client.
  * This client allows several concurrent connectionHolders to different servers using stomp urls.
+ * Each server is served by a pool of connections, destinations of shard urls are distributed across their servers.
+ * Within a pool frames are sent using the pool selection of the stomp context,
+ * subscriptions stay on the connection selected by their destination.
  */
 @Slf4j
 public class StompClient {
@@ -32,7 +40,9 @@ public class StompClient {
 
     private final List<StompFrameContextInterceptor> interceptors = new CopyOnWriteArrayList<>();
 
-    private final Map<StompUrl, StompConnection> connectionMap = new HashMap<>();
+    private final Map<StompUrl, StompConnectionPool> connectionPools = new ConcurrentHashMap<>();
+
+    private final Map<StompUrl, ConsistentHashRing<StompUrl>> shards = new ConcurrentHashMap<>();
 
     private final StompFrameContextInterceptor interceptorDelegator;
 
@@ -60,32 +70,96 @@ public class StompClient {
 
     /**
      * Get connection for the given url.
+     * The connection is selected by the destination of the url.
      *
      * @param url url
      * @return connection
      */
     public StompConnection getConnection(final StompUrl url) {
-        return getConnection(url, false);
+        final StompConnectionPool pool = this.getConnectionPool(url, false);
+        if (pool != null) {
+            return pool.select(url.getDestination());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Get connection pool for the given url.
+     *
+     * @param url url
+     * @return connection pool
+     */
+    public StompConnectionPool getConnectionPool(final StompUrl url) {
+        return this.getConnectionPool(url, false);
+    }
+
+    /**
+     * Get or create connection pool for the given url.
+     *
+     * @param url url
+     * @param create create connection pool if it does not exist
+     * @return connection pool
+     */
+    private StompConnectionPool getConnectionPool(final StompUrl url, final boolean create) {
+        final StompUrl target = this.resolveShard(url);
+        final StompUrl base = target.getBase();
+        if (create) {
+            return this.connectionPools.computeIfAbsent(base, b -> new StompConnectionPool(
+                    this.stompContext.getConnectionPoolSize(),
+                    this.stompContext.getConnectionPoolSelection(),
+                    () -> this.createConnection(target)
+            ));
+        } else {
+            return this.connectionPools.get(base);
+        }
+    }
+
+    /**
+     * Resolve the broker url for the destination of the given shard url.
+     * Destinations are mapped to the brokers of the url by consistent hashing, so adding a broker only moves the
+     * destinations that now belong to the new broker. Other urls are returned unchanged.
+     *
+     * @param url url
+     * @return broker url with the destination of the given url
+     */
+    private StompUrl resolveShard(final StompUrl url) {
+        if (url.isSharded()) {
+            final ConsistentHashRing<StompUrl> ring = this.shards.computeIfAbsent(url.getBase(), b -> {
+                final ConsistentHashRing<StompUrl> created = new ConsistentHashRing<>();
+                for (final StompUrl endpoint : b.getEndpoints()) {
+                    created.add(endpoint.getBase());
+                }
+                return created;
+            });
+            return ring.get(url.getDestination()).withDestination(url.getDestination());
+        } else {
+            return url;
+        }
     }
 
     /**
-     * Get or create connection for the given url.
+     * Create a new connection for the given url.
+     * Connections for failover urls switch between the endpoints of the url, each endpoint connects with the
+     * credentials given for it in the url. Connections to the same broker address share their endpoint statistics.
      *
      * @param url url
-     * @param create create connection if it does not exist
      * @return connection
      */
-    private StompConnection getConnection(final StompUrl url, final boolean create) {
-        final StompUrl base = url.getBase();
-        StompConnection connection = connectionMap.get(base);
-        if (connection == null && create) {
-            connection = new StompConnection(url.getHost(), url.getPort());
-            connection.getConnectFrame().setLogin(url.getLogin());
-            connection.getConnectFrame().setPasscode(url.getPasscode());
-            connection.addInterceptor(this.interceptorDelegator);
-
-            connectionMap.put(base, connection);
+    private StompConnection createConnection(final StompUrl url) {
+        final List<StompEndpoint> endpoints = new ArrayList<>();
+        for (final StompUrl endpoint : url.getEndpoints()) {
+            endpoints.add(new StompEndpoint(
+                    endpoint.getHost(),
+                    endpoint.getPort(),
+                    endpoint.getLogin(),
+                    endpoint.getPasscode(),
+                    this.stompContext.getEndpointStatistics(endpoint.getHost(), endpoint.getPort())
+            ));
         }
+
+        final StompConnection connection = new StompConnection(this.stompContext, endpoints);
+        connection.addInterceptor(this.interceptorDelegator);
         return connection;
     }
 
@@ -100,7 +174,7 @@ public class StompClient {
             final StompUrl url,
             final String body
     ) {
-        return getConnection(url, true).send(url.getDestination(), body);
+        return getConnectionPool(url, true).select().send(url.getDestination(), body);
     }
 
     /**
@@ -114,7 +188,7 @@ public class StompClient {
             final StompUrl url,
             final byte[] body
     ) {
-        return getConnection(url, true).send(url.getDestination(), body);
+        return getConnectionPool(url, true).select().send(url.getDestination(), body);
     }
 
     /**
@@ -128,11 +202,13 @@ public class StompClient {
             final StompUrl url,
             final StompData data
     ) {
-        return getConnection(url, true).send(url.getDestination(), data);
+        return getConnectionPool(url, true).select().send(url.getDestination(), data);
     }
 
     /**
-     * Send the given send frame to the given url and wait for response if expected.
+     * Send the given frame to the given url and wait for response if expected.
+     * Send frames outside of transactions may use any pooled connection, other frames use the connection they
+     * belong to.
      *
      * @param url url
      * @param frame frame
@@ -143,7 +219,43 @@ public class StompClient {
             final StompUrl url,
             final StompFrame frame
     ) throws IOException {
-        return getConnection(url, true).transmitFrame(frame);
+        return selectConnection(getConnectionPool(url, true), url, frame).transmitFrame(frame);
+    }
+
+    /**
+     * Select the connection of the given pool for the given frame.
+     * Send frames outside of transactions may use any connection. Frames referring to a subscription use the
+     * connection holding the subscription, all other frames like transaction frames use the connection of the
+     * destination of the url, so frames that belong together share a connection.
+     *
+     * @param pool connection pool
+     * @param url url
+     * @param frame frame
+     * @return connection
+     */
+    private static StompConnection selectConnection(
+            final StompConnectionPool pool,
+            final StompUrl url,
+            final StompFrame frame
+    ) {
+        final String action = frame.getAction();
+        final String subscriptionId;
+        if (StompAction.UNSUBSCRIBE.value().equals(action)) {
+            subscriptionId = frame.getHeader(StompHeader.ID);
+        } else {
+            subscriptionId = frame.getHeader(StompHeader.SUBSCRIPTION);
+        }
+
+        StompConnection connection = null;
+        if (StompAction.SEND.value().equals(action) && frame.getHeader(StompHeader.TRANSACTION) == null) {
+            connection = pool.select();
+        } else if (subscriptionId != null) {
+            connection = pool.findSubscription(subscriptionId);
+        }
+        if (connection == null) {
+            connection = pool.select(url.getDestination());
+        }
+        return connection;
     }
 
     /**
@@ -157,7 +269,9 @@ public class StompClient {
             final StompUrl url,
             final StompFrameContextHandler handler
     ) {
-        return getConnection(url, true).createSubscription(url.getDestination(), handler);
+        return getConnectionPool(url, true)
+                .select(url.getDestination())
+                .createSubscription(url.getDestination(), handler);
     }
 
     /**
@@ -173,7 +287,9 @@ public class StompClient {
             final String id,
             final StompFrameContextHandler handler
     ) {
-        return getConnection(url, true).createSubscription(id, url.getDestination(), handler);
+        return getConnectionPool(url, true)
+                .select(url.getDestination())
+                .createSubscription(id, url.getDestination(), handler);
     }
 
     /**
@@ -187,7 +303,12 @@ public class StompClient {
             final StompUrl url,
             final String id
     ) {
-        return this.getConnection(url, true).removeSubscription(id);
+        final StompConnection connection = this.getConnectionPool(url, true).findSubscription(id);
+        if (connection != null) {
+            return connection.removeSubscription(id);
+        } else {
+            return null;
+        }
     }
 
     /**
@@ -299,15 +420,15 @@ public class StompClient {
             @NonNull final StompUrl url,
             @NonNull final StompFrameContextHandler handler
     ) {
-        return getConnection(url, true).awaitFrame(handler);
+        return getConnectionPool(url, true).select(url.getDestination()).awaitFrame(handler);
     }
 
     /**
      * Close client and all connections.
      */
     public void close() {
-        for (final StompConnection connection : connectionMap.values()) {
-            connection.close();
+        for (final StompConnectionPool pool : connectionPools.values()) {
+            pool.close();
         }
     }
 
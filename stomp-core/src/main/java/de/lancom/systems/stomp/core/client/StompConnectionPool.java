@@ -0,0 +1,123 @@
+package de.lancom.systems.stomp.core.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import de.lancom.systems.stomp.core.connection.StompConnection;
+import lombok.Getter;
+
+/**
+ * Fixed set of connections to the same broker endpoint.
+ * Frames without ordering requirements are spread across all connections, so the throughput is not limited by a
+ * single socket and transmit queue. Subscriptions and frames that have to keep their order are placed on the
+ * connection selected by their key, which is the same for each key as long as the pool exists.
+ */
+public class StompConnectionPool {
+
+    private final List<StompConnection> connections;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Getter
+    private final StompPoolSelection selection;
+
+    /**
+     * Create a new pool of the given size.
+     *
+     * @param size amount of connections
+     * @param selection selection of the connection for frames without key
+     * @param factory factory for the pooled connections
+     */
+    public StompConnectionPool(
+            final int size,
+            final StompPoolSelection selection,
+            final Supplier<StompConnection> factory
+    ) {
+        if (size < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+
+        final List<StompConnection> created = new ArrayList<>(size);
+        for (int index = 0; index < size; index++) {
+            created.add(factory.get());
+        }
+        this.connections = Collections.unmodifiableList(created);
+        this.selection = selection;
+    }
+
+    /**
+     * Get pooled connections.
+     *
+     * @return connections
+     */
+    public List<StompConnection> getConnections() {
+        return this.connections;
+    }
+
+    /**
+     * Select connection for a frame without ordering requirements.
+     *
+     * @return connection
+     */
+    public StompConnection select() {
+        if (this.connections.size() == 1) {
+            return this.connections.get(0);
+        } else if (this.selection == StompPoolSelection.LEAST_QUEUED) {
+            final int offset = this.counter.getAndIncrement();
+            StompConnection result = null;
+            for (int index = 0; index < this.connections.size(); index++) {
+                final StompConnection connection = this.connections.get(
+                        Math.floorMod(offset + index, this.connections.size())
+                );
+                if (result == null || connection.getTransmitQueue().getDepth() < result.getTransmitQueue().getDepth()) {
+                    result = connection;
+                }
+            }
+            return result;
+        } else {
+            return this.connections.get(Math.floorMod(this.counter.getAndIncrement(), this.connections.size()));
+        }
+    }
+
+    /**
+     * Select the connection for the given key.
+     * The same key always selects the same connection, which keeps the order of its frames.
+     *
+     * @param key key like a destination
+     * @return connection
+     */
+    public StompConnection select(final String key) {
+        if (this.connections.size() == 1 || key == null) {
+            return this.connections.get(0);
+        } else {
+            final int hash = key.hashCode();
+            return this.connections.get(Math.floorMod(hash ^ (hash >>> Short.SIZE), this.connections.size()));
+        }
+    }
+
+    /**
+     * Find the connection that holds the subscription with the given id.
+     *
+     * @param subscriptionId subscription id
+     * @return connection or null if no pooled connection holds the subscription
+     */
+    public StompConnection findSubscription(final String subscriptionId) {
+        for (final StompConnection connection : this.connections) {
+            if (connection.getSubscription(subscriptionId) != null) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Close all pooled connections.
+     */
+    public void close() {
+        for (final StompConnection connection : this.connections) {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package de.lancom.systems.stomp.core.client;
+
+/**
+ * Selection of the pooled connection that transmits a frame.
+ */
+public enum StompPoolSelection {
+    /**
+     * Use the pooled connections one after another.
+     */
+    ROUND_ROBIN,
+    /**
+     * Use the pooled connection with the fewest queued frames.
+     */
+    LEAST_QUEUED
+}
@@ -1,15 +1,30 @@
 package de.lancom.systems.stomp.core.client;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import de.lancom.systems.stomp.core.util.StringUtil;
 
 /**
  * Stomp url.
+ * Besides single broker urls like {@code stomp://host:61613/queue/name} group urls list several brokers.
+ * The failover form {@code stomp:failover:(stomp://a:61613,stomp://b:61613)/queue/name} lists brokers serving the
+ * same destinations, the shard form {@code stomp:shard:(stomp://a:61613,stomp://b:61613)/queue/name} lists brokers
+ * the destinations are distributed across.
  */
 public final class StompUrl {
 
+    private static final String FAILOVER = "failover";
+    private static final String SHARD = "shard";
+    private static final String GROUP_START = ":(";
+    private static final String GROUP_END = ")";
+
     private final URI uri;
+    private final String group;
+    private final List<StompUrl> endpoints;
+    private final String destination;
 
     /**
      * Parse the given stomp url.
@@ -32,6 +47,64 @@ public final class StompUrl {
      */
     private StompUrl(final String url) {
         this.uri = URI.create(url);
+
+        if (this.uri.isOpaque()) {
+            final String part = this.uri.getSchemeSpecificPart();
+            final int start = part.indexOf(GROUP_START);
+            final int end = part.indexOf(GROUP_END);
+            if (start < 0 || end < start) {
+                throw new IllegalArgumentException(String.format("Invalid group url '%s'", url));
+            }
+
+            this.group = part.substring(0, start);
+            if (!FAILOVER.equals(this.group) && !SHARD.equals(this.group)) {
+                throw new IllegalArgumentException(String.format("Unknown group '%s' in url '%s'", this.group, url));
+            }
+
+            final List<StompUrl> members = new ArrayList<>();
+            for (final String member : part.substring(start + GROUP_START.length(), end).split(",")) {
+                if (!StringUtil.isBlank(member)) {
+                    members.add(new StompUrl(member.trim()));
+                }
+            }
+            if (members.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Group url '%s' has no endpoints", url));
+            }
+            this.endpoints = Collections.unmodifiableList(members);
+            this.destination = part.substring(end + GROUP_END.length());
+        } else {
+            this.group = null;
+            this.endpoints = Collections.singletonList(this);
+            this.destination = this.uri.getPath();
+        }
+    }
+
+    /**
+     * Check if the url lists several brokers to fail over between.
+     *
+     * @return true for failover urls
+     */
+    public boolean isFailover() {
+        return FAILOVER.equals(this.group);
+    }
+
+    /**
+     * Check if the url lists several brokers to distribute destinations across.
+     *
+     * @return true for shard urls
+     */
+    public boolean isSharded() {
+        return SHARD.equals(this.group);
+    }
+
+    /**
+     * Get the urls of the brokers of this url.
+     * A single broker url returns itself.
+     *
+     * @return endpoint urls
+     */
+    public List<StompUrl> getEndpoints() {
+        return this.endpoints;
     }
 
     /**
@@ -45,29 +118,41 @@ public final class StompUrl {
 
     /**
      * Get url host.
+     * Group urls return the host of their first endpoint.
      *
      * @return url host
      */
     public String getHost() {
+        if (this.group != null) {
+            return this.endpoints.get(0).getHost();
+        }
         return uri.getHost();
     }
 
     /**
      * Get url port.
+     * Group urls return the port of their first endpoint.
      *
      * @return port
      */
     public int getPort() {
+        if (this.group != null) {
+            return this.endpoints.get(0).getPort();
+        }
         return uri.getPort();
     }
 
     /**
      * Get url login.
+     * Group urls return the login of their first endpoint.
      *
      * @return login
      */
     public String getLogin() {
-        final String auth = uri.getAuthority();
+        if (this.group != null) {
+            return this.endpoints.get(0).getLogin();
+        }
+        final String auth = uri.getUserInfo();
         if (auth != null) {
             final String[] parts = auth.split(":", 2);
             if (parts.length > 0) {
@@ -79,15 +164,19 @@ public final class StompUrl {
 
     /**
      * Get url passcode.
+     * Group urls return the passcode of their first endpoint.
      *
      * @return passcode
      */
     public String getPasscode() {
-        final String auth = uri.getAuthority();
+        if (this.group != null) {
+            return this.endpoints.get(0).getPasscode();
+        }
+        final String auth = uri.getUserInfo();
         if (auth != null) {
             final String[] parts = auth.split(":", 2);
             if (parts.length > 1) {
-                return parts[0];
+                return parts[1];
             }
         }
         return null;
@@ -99,7 +188,7 @@ public final class StompUrl {
      * @return destination
      */
     public String getDestination() {
-        return uri.getPath();
+        return this.destination;
     }
 
     /**
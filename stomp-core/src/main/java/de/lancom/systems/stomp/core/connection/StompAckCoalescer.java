@@ -0,0 +1,273 @@
+package de.lancom.systems.stomp.core.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import de.lancom.systems.stomp.core.StompContext;
+import de.lancom.systems.stomp.core.util.TimingWheel;
+import de.lancom.systems.stomp.core.wire.StompAckMode;
+import de.lancom.systems.stomp.core.wire.StompFrame;
+import de.lancom.systems.stomp.core.wire.frame.AckFrame;
+import de.lancom.systems.stomp.core.wire.frame.NackFrame;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects acknowledgements of a subscription and transmits them together without receipts.
+ * In {@link StompAckMode#CLIENT} mode only the latest ack of a window is transmitted because it acknowledges all
+ * previous messages. In {@link StompAckMode#CLIENT_INDIVIDUAL} mode all acks of a window are queued at once and
+ * written with a single socket write.
+ * A window ends when it holds the configured amount of acks, its linger time passed or a nack is sent.
+ * If frames of a {@link StompAckMode#CLIENT} subscription may be handled out of order, because the subscription
+ * uses several lanes or batches, messages are only acknowledged up to the first message that is still handled.
+ * Only messages received since the last reset are acknowledged, acknowledgements of earlier sessions are ignored.
+ */
+@Slf4j
+public class StompAckCoalescer {
+
+    private final StompContext stompContext;
+    private final StompSubscription subscription;
+    private final Map<String, Delivery> outstanding = new HashMap<>();
+    private final Queue<Delivery> deliveries = new ArrayDeque<>();
+    private List<StompFrame> pending = new ArrayList<>();
+    private String cumulative;
+    private int count;
+    private TimingWheel.Entry linger;
+
+    /**
+     * Create a new ack coalescer for the given subscription.
+     *
+     * @param stompContext stomp context
+     * @param subscription subscription
+     */
+    public StompAckCoalescer(final StompContext stompContext, final StompSubscription subscription) {
+        this.stompContext = stompContext;
+        this.subscription = subscription;
+    }
+
+    /**
+     * Register a received message that has to be acknowledged.
+     * Must be called in the order the messages have been received.
+     *
+     * @param ack ack id
+     */
+    public synchronized void received(final String ack) {
+        final Delivery delivery = new Delivery(ack, this.isOrdered());
+        this.outstanding.put(ack, delivery);
+        if (delivery.isOrdered()) {
+            this.deliveries.add(delivery);
+        }
+    }
+
+    /**
+     * Acknowledge the message with the given ack id.
+     *
+     * @param ack ack id
+     */
+    public synchronized void ack(final String ack) {
+        final Delivery delivery = this.outstanding.remove(ack);
+        if (delivery == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring ack of message {} that has not been received since the last reset", ack);
+            }
+        } else if (!delivery.isOrdered()) {
+            this.coalesce(ack);
+        } else {
+            delivery.complete(true);
+            this.release();
+        }
+    }
+
+    /**
+     * Reject the message with the given ack id.
+     * Pending acks are transmitted first to keep the order of acknowledgements.
+     *
+     * @param ack ack id
+     */
+    public synchronized void nack(final String ack) {
+        final Delivery delivery = this.outstanding.remove(ack);
+        if (delivery == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Ignoring nack of message {} that has not been received since the last reset", ack);
+            }
+        } else if (!delivery.isOrdered()) {
+            this.reject(ack);
+        } else {
+            delivery.complete(false);
+            this.release();
+        }
+    }
+
+    /**
+     * Transmit all pending acks.
+     */
+    public synchronized void flush() {
+        if (this.linger != null) {
+            this.linger.cancel();
+            this.linger = null;
+        }
+        if (this.cumulative != null) {
+            this.pending.add(new AckFrame(this.cumulative));
+            this.cumulative = null;
+        }
+        if (!this.pending.isEmpty()) {
+            this.subscription.getConnection().transmitFramesWithoutReceipt(this.pending);
+            this.pending = new ArrayList<>();
+        }
+        this.count = 0;
+    }
+
+    /**
+     * Forget all received messages and drop pending acks.
+     * Called if the subscription is reset, the broker redelivers unacknowledged messages to the next session.
+     */
+    public synchronized void reset() {
+        if (this.linger != null) {
+            this.linger.cancel();
+            this.linger = null;
+        }
+        this.outstanding.clear();
+        this.deliveries.clear();
+        this.pending = new ArrayList<>();
+        this.cumulative = null;
+        this.count = 0;
+    }
+
+    /**
+     * Check if messages may be handled out of order and acks have to wait for earlier messages.
+     *
+     * @return true for client ack mode with several lanes or batches
+     */
+    private boolean isOrdered() {
+        boolean ordered = this.subscription.getSubscribeFrame().getAckMode() == StompAckMode.CLIENT;
+        ordered = ordered && (this.subscription.getParallelism() > 1 || this.subscription.getBatchPolicy() != null);
+        return ordered;
+    }
+
+    /**
+     * Acknowledge or reject completed messages in the order they have been received.
+     * Stops at the first message that is still handled.
+     */
+    private void release() {
+        Delivery delivery = this.deliveries.peek();
+        while (delivery != null && delivery.isCompleted()) {
+            this.deliveries.poll();
+            if (delivery.isSuccess()) {
+                this.coalesce(delivery.getAck());
+            } else {
+                this.reject(delivery.getAck());
+            }
+            delivery = this.deliveries.peek();
+        }
+    }
+
+    /**
+     * Add ack to the current window.
+     *
+     * @param ack ack id
+     */
+    private void coalesce(final String ack) {
+        if (this.subscription.getSubscribeFrame().getAckMode() == StompAckMode.CLIENT) {
+            this.cumulative = ack;
+        } else {
+            this.pending.add(new AckFrame(ack));
+        }
+        this.count++;
+
+        if (this.count >= this.stompContext.getAckCoalesceSize()) {
+            this.flush();
+        } else if (this.count == 1) {
+            final long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(this.stompContext.getAckCoalesceLinger());
+            this.linger = this.subscription.getConnection().getEventLoop().schedule(deadline, () -> {
+                this.flush();
+                return false;
+            });
+        }
+    }
+
+    /**
+     * Transmit nack after all pending acks.
+     *
+     * @param ack ack id
+     */
+    private void reject(final String ack) {
+        this.flush();
+        this.subscription.getConnection().transmitFrame(new NackFrame(ack)).fail(ex -> {
+            if (log.isErrorEnabled()) {
+                log.error("Could not send nack frame", ex);
+            }
+        });
+    }
+
+    /**
+     * Received message waiting for its acknowledgement.
+     */
+    private static final class Delivery {
+        private final String ack;
+        private final boolean ordered;
+        private boolean completed;
+        private boolean success;
+
+        /**
+         * Create a new delivery.
+         *
+         * @param ack ack id
+         * @param ordered true if the message has to be acknowledged in the order it has been received
+         */
+        private Delivery(final String ack, final boolean ordered) {
+            this.ack = ack;
+            this.ordered = ordered;
+        }
+
+        /**
+         * Get ack id.
+         *
+         * @return ack id
+         */
+        private String getAck() {
+            return this.ack;
+        }
+
+        /**
+         * Check if the message has to be acknowledged in the order it has been received.
+         *
+         * @return ordered
+         */
+        private boolean isOrdered() {
+            return this.ordered;
+        }
+
+        /**
+         * Mark message as handled.
+         *
+         * @param handled true if the message has been handled successfully
+         */
+        private void complete(final boolean handled) {
+            this.completed = true;
+            this.success = handled;
+        }
+
+        /**
+         * Check if the message has been handled.
+         *
+         * @return completed
+         */
+        private boolean isCompleted() {
+            return this.completed;
+        }
+
+        /**
+         * Check if the message has been handled successfully.
+         *
+         * @return success
+         */
+        private boolean isSuccess() {
+            return this.success;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package de.lancom.systems.stomp.core.connection;
+
+import lombok.Data;
+import lombok.NonNull;
+
+/**
+ * Batching settings for a subscription.
+ * A batch is handed to the handler once it reaches the maximum size or its first frame waited for the linger
+ * time in milliseconds.
+ */
+@Data
+public class StompBatchPolicy {
+    @NonNull
+    private final StompFrameContextBatchHandler handler;
+    private final int maxSize;
+    private final long maxLinger;
+}
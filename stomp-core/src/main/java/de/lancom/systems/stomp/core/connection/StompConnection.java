@@ -2,33 +2,45 @@ package de.lancom.systems.stomp.core.connection;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import de.lancom.systems.defer.Deferred;
 import de.lancom.systems.defer.Promise;
 import de.lancom.systems.stomp.core.StompContext;
+import de.lancom.systems.stomp.core.StompEventLoop;
+import de.lancom.systems.stomp.core.util.TimingWheel;
 import de.lancom.systems.stomp.core.wire.StompAction;
 import de.lancom.systems.stomp.core.wire.StompData;
 import de.lancom.systems.stomp.core.wire.StompDeserializer;
 import de.lancom.systems.stomp.core.wire.StompFrame;
 import de.lancom.systems.stomp.core.wire.StompHeader;
+import de.lancom.systems.stomp.core.wire.StompHeartBeat;
 import de.lancom.systems.stomp.core.wire.StompSerializer;
+import de.lancom.systems.stomp.core.wire.StompVersion;
 import de.lancom.systems.stomp.core.wire.frame.ClientFrame;
 import de.lancom.systems.stomp.core.wire.frame.ConnectFrame;
 import de.lancom.systems.stomp.core.wire.frame.DisconnectFrame;
@@ -44,22 +56,30 @@ import lombok.extern.slf4j.Slf4j;
 public class StompConnection {
 
     private static final AtomicInteger COUNTER = new AtomicInteger();
+    private static final int MAX_BACKOFF_SHIFT = 20;
+    private static final int HEART_BEAT_TOLERANCE = 2;
 
-    private final List<StompSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Map<String, StompSubscription> subscriptions = new ConcurrentHashMap<>();
+    private final Set<StompSubscription> pendingSubscriptions = ConcurrentHashMap.newKeySet();
     private final List<StompFrameContextInterceptor> interceptors = new CopyOnWriteArrayList<>();
-    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
     private final Lock connectLock = new ReentrantLock();
-    private State state = State.DISCONNECTED;
+    private volatile State state = State.DISCONNECTED;
+    private final StateCondition connected = new StateCondition(State.CONNECTED);
+    private final StateCondition authorized = new StateCondition(State.AUTHORIZED);
     @Getter
-    private final Queue<StompFrameTransmitJob> transmitJobs = new ConcurrentLinkedQueue<>();
+    private final StompTransmitQueue transmitQueue;
     @Getter
     private final Queue<StompFrameAwaitJob> awaitJobs = new ConcurrentLinkedQueue<>();
     @Getter
+    private final Map<String, StompFrameAwaitJob> receiptJobs = new ConcurrentHashMap<>();
+    private final List<Deferred<StompFrameContext>> unconfirmed = new ArrayList<>();
+    private long unconfirmedSince;
+    @Getter
     private final int id;
     @Getter
-    private final String host;
+    private final List<StompEndpoint> endpoints;
     @Getter
-    private final int port;
+    private volatile StompEndpoint endpoint;
     @Getter
     private final ConnectFrame connectFrame;
     @Getter
@@ -72,10 +92,20 @@ public class StompConnection {
     private StompSerializer serializer;
     @Getter
     private SocketChannel channel;
+    @Getter
+    private SelectionKey selectionKey;
 
     private final StompContext stompContext;
+    @Getter
+    private final StompEventLoop eventLoop;
 
-    private long reconnectLock;
+    private Deferred<Void> connectDeferred;
+    private volatile long reconnectDeadline = System.nanoTime();
+    private volatile int failures;
+    private long connectStarted;
+    private TimingWheel.Entry heartBeat;
+    private final AtomicInteger pendingDispatch = new AtomicInteger();
+    private final AtomicBoolean readPaused = new AtomicBoolean();
 
     /**
      * Create a new stomp connection for the given host and port using a new stomp context.
@@ -96,76 +126,409 @@ public class StompConnection {
      * @param port port
      */
     public StompConnection(final StompContext stompContext, final String host, final int port) {
+        this(stompContext, Collections.singletonList(new StompEndpoint(host, port)));
+    }
+
+    /**
+     * Create a new stomp connection for the given endpoints using the given stomp context.
+     * Each connect attempt selects the fastest healthy endpoint, so the connection moves to another endpoint
+     * together with its subscriptions and queued frames if its current endpoint fails.
+     *
+     * @param stompContext stomp context
+     * @param endpoints endpoints
+     */
+    public StompConnection(final StompContext stompContext, final List<StompEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
         this.id = COUNTER.incrementAndGet();
         this.stompContext = stompContext;
+        this.eventLoop = stompContext.nextEventLoop();
+        this.transmitQueue = new StompTransmitQueue(stompContext);
         this.stompContext.addConnection(this);
-        this.host = host;
-        this.port = port;
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.endpoint = this.endpoints.get(0);
         this.connectFrame = new ConnectFrame();
         this.connectFrame.setAcceptStompVersionList(stompContext.getStompVersions());
+        if (isHeartBeating(stompContext)) {
+            this.connectFrame.setHeartBeat(new StompHeartBeat(
+                    stompContext.getHeartBeatOutgoing(),
+                    stompContext.getHeartBeatIncoming()
+            ));
+        }
         this.disconnectFrame = new DisconnectFrame();
     }
 
+    /**
+     * Check if heart-beats are configured and may be negotiated.
+     * Heart-beats are only supported by stomp 1.1 and later.
+     *
+     * @param stompContext stomp context
+     * @return true if the connect frame has to offer heart-beats
+     */
+    private static boolean isHeartBeating(final StompContext stompContext) {
+        boolean heartBeating = stompContext.getHeartBeatOutgoing() > 0 || stompContext.getHeartBeatIncoming() > 0;
+        heartBeating = heartBeating && (stompContext.getStompVersions().contains(StompVersion.VERSION_1_1)
+                || stompContext.getStompVersions().contains(StompVersion.VERSION_1_2));
+        return heartBeating;
+    }
+
     /**
      * Connect to host if required.
+     * The host name is resolved asynchronously and the socket is connected without blocking the event loop.
+     * The attempt fails if the socket is not connected within the connect timeout of the stomp context.
+     * Subsequent attempts after failures are delayed by an exponential backoff with jitter.
+     * The login and passcode of the selected endpoint are used for the connect frame if the endpoint has any.
      *
      * @return connection promise
      */
     public Promise<Void> connect() {
-        boolean connect = true;
-        connect = connect && System.currentTimeMillis() > this.reconnectLock;
-        connect = connect && this.getState() == State.DISCONNECTED;
+        final Deferred<Void> deferred;
+        final StompEndpoint target;
+        try {
+            this.connectLock.lock();
+
+            boolean connect = true;
+            connect = connect && System.nanoTime() - this.reconnectDeadline >= 0;
+            connect = connect && this.getState() == State.DISCONNECTED;
 
-        if (connect) {
-            final Deferred<Void> deferred = this.stompContext.getDeferred().defer();
+            if (connect) {
+                deferred = this.stompContext.getDeferred().defer();
+                target = StompEndpoint.select(this.endpoints, System.nanoTime());
+                this.endpoint = target;
+                if (target.getLogin() != null) {
+                    this.connectFrame.setLogin(target.getLogin());
+                    this.connectFrame.setPasscode(target.getPasscode());
+                }
+                this.connectStarted = System.nanoTime();
+                this.connectDeferred = deferred;
+                this.connectionPromise = deferred.getPromise();
+                this.setState(State.CONNECTING);
+            } else {
+                deferred = null;
+                target = null;
+            }
+        } finally {
+            this.connectLock.unlock();
+        }
 
-            this.connectionPromise = deferred.getPromise();
-            this.connectionPromise.fail(
+        if (deferred != null) {
+            deferred.getPromise().fail(
                     (ex) -> {
-                        this.close();
+                        if (this.connectionPromise == deferred.getPromise()) {
+                            this.close(true);
+                        }
                         if (log.isWarnEnabled()) {
                             log.warn("Connection to {} failed, retrying", this);
                         }
                     }
             );
 
-            try {
+            final long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(this.stompContext.getConnectTimeout());
+            final TimingWheel.Entry timeout = this.eventLoop.schedule(deadline, () -> {
+                if (!deferred.getPromise().isDone() && this.getState() == State.CONNECTING) {
+                    deferred.reject(new TimeoutException("Could not connect to " + this));
+                    return true;
+                } else {
+                    return false;
+                }
+            });
+            deferred.getPromise().always(timeout::cancel);
 
-                this.connectLock.lock();
+            log.debug("Connecting to {}", this);
+            this.stompContext.getResolveExecutor().execute(() -> {
+                final InetSocketAddress address = new InetSocketAddress(target.getHost(), target.getPort());
+                this.eventLoop.submit(() -> this.open(address, deferred));
+            });
 
-                this.setState(State.CONNECTED);
-                this.reconnectLock = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(2);
+            return deferred.getPromise();
+        } else {
+            return this.stompContext.getDeferred().success();
+        }
+    }
 
-                log.debug("Connecting to {}", this);
-                final SocketChannel createdChannel = SocketChannel.open(new InetSocketAddress(host, port));
-                createdChannel.configureBlocking(false);
-                createdChannel.register(this.stompContext.getSelector(), SelectionKey.OP_READ, this);
+    /**
+     * Open a non blocking channel to the given address and register it for connect readiness.
+     * Must be called by the event loop of this connection.
+     *
+     * @param address resolved address
+     * @param deferred connection deferred
+     */
+    private void open(final InetSocketAddress address, final Deferred<Void> deferred) {
+        if (this.connectDeferred == deferred && !deferred.getPromise().isDone()) {
+            try {
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(address.getHostString());
+                }
 
-                this.deserializer = new StompDeserializer(this.stompContext, createdChannel);
-                this.serializer = new StompSerializer(this.stompContext, createdChannel);
+                final SocketChannel createdChannel = SocketChannel.open();
                 this.channel = createdChannel;
+                createdChannel.configureBlocking(false);
 
-                return this.transmitFrameAndAwait(
-                        new StompFrameContext(this.connectFrame),
-                        () -> this.state == State.CONNECTED,
-                        c -> Objects.equals(StompAction.CONNECTED.value(), c.getFrame().getAction())
-                ).then(
-                        () -> {
-                            this.setState(State.AUTHORIZED);
-                            for (final StompSubscription subscription : this.getSubscriptionsForRegistration()) {
-                                subscription.subscribe();
-                            }
-                        }
-                ).apply(deferred);
+                if (createdChannel.connect(address)) {
+                    this.selectionKey = createdChannel.register(this.eventLoop.getSelector(), 0, this);
+                    this.finishConnect();
+                } else {
+                    this.selectionKey = createdChannel.register(
+                            this.eventLoop.getSelector(),
+                            SelectionKey.OP_CONNECT,
+                            this
+                    );
+                }
+            } catch (final IOException ex) {
+                deferred.reject(ex);
+            }
+        }
+    }
+
+    /**
+     * Complete the pending socket connect and send the connect frame once the socket is connected.
+     * Called by the event loop if the channel of this connection is ready to connect.
+     */
+    public void finishConnect() {
+        final Deferred<Void> deferred = this.connectDeferred;
+        final SocketChannel createdChannel = this.channel;
+
+        if (deferred != null && createdChannel != null && this.getState() == State.CONNECTING) {
+            try {
+                if (createdChannel.finishConnect()) {
+                    this.endpoint.recordConnectTime(System.nanoTime() - this.connectStarted);
+                    this.selectionKey.interestOps(SelectionKey.OP_READ);
+                    this.deserializer = new StompDeserializer(this.stompContext, createdChannel);
+                    this.serializer = new StompSerializer(this.stompContext, createdChannel);
+
+                    log.debug("Connected to {}", this);
+                    this.setState(State.CONNECTED);
+                    this.authorize(deferred);
+                }
             } catch (final IOException ex) {
                 deferred.reject(ex);
-            } finally {
-                this.connectLock.unlock();
             }
-            return this.connectionPromise;
+        }
+    }
+
+    /**
+     * Send the connect frame and register pending subscriptions.
+     * With pipelined recovery the subscribe frames are queued right behind the connect frame, so all of them are
+     * written together. Only the last subscribe frame requests a receipt and the connection is authorized once it
+     * arrives, which releases queued frames only after all subscriptions are registered.
+     * Otherwise the subscriptions are registered one by one after the connection has been authorized.
+     *
+     * @param deferred connection deferred
+     */
+    private void authorize(final Deferred<Void> deferred) {
+        final Promise<StompFrameContext> connectPromise = this.transmitFrameAndAwait(
+                new StompFrameContext(this.connectFrame),
+                this.connected,
+                c -> {
+                    final boolean connectedFrame = Objects.equals(
+                            StompAction.CONNECTED.value(),
+                            c.getFrame().getAction()
+                    );
+                    if (connectedFrame) {
+                        this.startHeartBeat(c.getFrame());
+                    }
+                    return connectedFrame;
+                }
+        );
+
+        final List<StompSubscription> subscribing = new ArrayList<>();
+        final List<Deferred<Void>> subscribeDeferreds = new ArrayList<>();
+        if (this.stompContext.isPipelinedRecovery() && this.stompContext.isReceiptsEnabled()) {
+            for (final StompSubscription subscription : this.getSubscriptionsForRegistration()) {
+                final Deferred<Void> subscribeDeferred = subscription.prepareSubscribe();
+                if (subscribeDeferred != null) {
+                    subscribing.add(subscription);
+                    subscribeDeferreds.add(subscribeDeferred);
+                }
+            }
+        }
+
+        if (subscribing.isEmpty()) {
+            connectPromise.then(
+                    () -> {
+                        this.failures = 0;
+                        this.endpoint.markHealthy();
+                        this.setState(State.AUTHORIZED);
+                        for (final StompSubscription subscription : this.getSubscriptionsForRegistration()) {
+                            subscription.subscribe();
+                        }
+                    }
+            ).apply(deferred);
         } else {
-            return this.stompContext.getDeferred().success();
+            final String receipt = UUID.randomUUID().toString();
+            final Deferred<StompFrameContext> confirmed = this.stompContext.getDeferred().defer();
+            connectPromise.fail(confirmed);
+            this.awaitReceipt(receipt).apply(confirmed);
+
+            final Promise<StompFrameContext> receiptPromise = confirmed.getPromise();
+            for (int index = 0; index < subscribing.size(); index++) {
+                final StompSubscription subscription = subscribing.get(index);
+                final StompFrameContext context = new StompFrameContext();
+                context.setFrame(subscription.getSubscribeFrame());
+                if (index == subscribing.size() - 1) {
+                    context.getFrame().setHeader(StompHeader.RECEIPT, receipt);
+                } else {
+                    context.getFrame().removeHeader(StompHeader.RECEIPT);
+                }
+                this.enqueue(new StompFrameTransmitJob(context, this.connected, null));
+                subscription.completeSubscribe(receiptPromise, subscribeDeferreds.get(index));
+            }
+            this.eventLoop.requestWrite(this);
+
+            receiptPromise.then(
+                    () -> {
+                        this.failures = 0;
+                        this.endpoint.markHealthy();
+                        this.setState(State.AUTHORIZED);
+                    }
+            ).apply(deferred);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Pipelined {} subscriptions behind connect frame to {}", subscribing.size(), this);
+            }
+        }
+    }
+
+    /**
+     * Start heart-beating with the intervals negotiated by the given connected frame.
+     * Heart-beats are only sent if nothing else has been written for half of the outgoing interval.
+     * The connection is dropped and recovered if nothing has been read for two incoming intervals.
+     *
+     * @param frame connected frame
+     */
+    private void startHeartBeat(final StompFrame frame) {
+        final StompHeartBeat client = this.connectFrame.getHeartBeat();
+        final StompHeartBeat server = StompHeartBeat.parse(frame.getHeader(StompHeader.HEART_BEAT));
+        final long outgoing = TimeUnit.MILLISECONDS.toNanos(
+                StompHeartBeat.negotiate(client.getOutgoing(), server.getIncoming())
+        );
+        final long incoming = TimeUnit.MILLISECONDS.toNanos(
+                StompHeartBeat.negotiate(server.getOutgoing(), client.getIncoming())
+        );
+
+        if (outgoing > 0 || incoming > 0) {
+            final long period;
+            if (outgoing == 0) {
+                period = incoming / 2;
+            } else if (incoming == 0) {
+                period = outgoing / 2;
+            } else {
+                period = Math.min(outgoing, incoming) / 2;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Negotiated heart-beat {} with {}", new StompHeartBeat(
+                        TimeUnit.NANOSECONDS.toMillis(outgoing),
+                        TimeUnit.NANOSECONDS.toMillis(incoming)
+                ), this);
+            }
+            this.scheduleHeartBeat(this.serializer, this.deserializer, outgoing, incoming, period);
+        }
+    }
+
+    /**
+     * Schedule the next heart-beat check.
+     *
+     * @param expectedSerializer serializer of the connection the check belongs to
+     * @param expectedDeserializer deserializer of the connection the check belongs to
+     * @param outgoing outgoing interval in nanoseconds
+     * @param incoming incoming interval in nanoseconds
+     * @param period check period in nanoseconds
+     */
+    private void scheduleHeartBeat(
+            final StompSerializer expectedSerializer,
+            final StompDeserializer expectedDeserializer,
+            final long outgoing,
+            final long incoming,
+            final long period
+    ) {
+        this.heartBeat = this.eventLoop.schedule(System.nanoTime() + period, () -> this.checkHeartBeat(
+                expectedSerializer,
+                expectedDeserializer,
+                outgoing,
+                incoming,
+                period
+        ));
+    }
+
+    /**
+     * Send a heart-beat if the outgoing side is idle and drop the connection if the incoming side is silent.
+     * Only compares the time of the last read and write with the negotiated intervals, so reads and writes
+     * do not have to reschedule anything. A connection that paused reading is not considered silent.
+     * Runs on the event loop of this connection.
+     *
+     * @param expectedSerializer serializer of the connection the check belongs to
+     * @param expectedDeserializer deserializer of the connection the check belongs to
+     * @param outgoing outgoing interval in nanoseconds
+     * @param incoming incoming interval in nanoseconds
+     * @param period check period in nanoseconds
+     * @return true if the connection has been dropped
+     */
+    private boolean checkHeartBeat(
+            final StompSerializer expectedSerializer,
+            final StompDeserializer expectedDeserializer,
+            final long outgoing,
+            final long incoming,
+            final long period
+    ) {
+        boolean current = true;
+        current = current && this.serializer == expectedSerializer;
+        current = current && this.deserializer == expectedDeserializer;
+
+        if (current) {
+            final long now = System.nanoTime();
+            boolean silent = incoming > 0;
+            silent = silent && !this.isReadPaused();
+            silent = silent && now - expectedDeserializer.getLastRead() > incoming * HEART_BEAT_TOLERANCE;
+            if (silent) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Missing heart-beat from {}, reconnecting", this);
+                }
+                this.close(true);
+                return true;
+            }
+
+            if (outgoing > 0 && now - expectedSerializer.getLastWrite() >= outgoing / 2) {
+                try {
+                    expectedSerializer.writeHeartBeat();
+                    this.setWriteInterest(!expectedSerializer.flush());
+                } catch (final IOException ex) {
+                    if (log.isErrorEnabled()) {
+                        log.error(String.format("Failed to send heart-beat to %s", this), ex);
+                    }
+                    this.close(true);
+                    return false;
+                }
+            }
+            this.scheduleHeartBeat(expectedSerializer, expectedDeserializer, outgoing, incoming, period);
         }
+        return false;
+    }
+
+    /**
+     * Delay the next connect attempt by an exponential backoff with full jitter.
+     * The upper bound of the delay doubles with every failure until the maximum reconnect delay is reached.
+     * The current endpoint is avoided for the maximum reconnect delay if the connection has other endpoints.
+     */
+    private void backoff() {
+        this.failures++;
+        this.endpoint.markFailed(
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.stompContext.getReconnectDelayMax())
+        );
+
+        final long ceiling = Math.min(
+                this.stompContext.getReconnectDelay() << Math.min(this.failures - 1, MAX_BACKOFF_SHIFT),
+                this.stompContext.getReconnectDelayMax()
+        );
+        final long delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+
+        this.reconnectDeadline = System.nanoTime() + delay;
+        this.eventLoop.schedule(this.reconnectDeadline, () -> {
+            this.eventLoop.requestWrite(this);
+            return false;
+        });
     }
 
     /**
@@ -181,7 +544,7 @@ public class StompConnection {
 
             Promise<Void> promise = this.connectionPromise;
 
-            for (final StompSubscription subscription : subscriptions) {
+            for (final StompSubscription subscription : subscriptions.values()) {
                 promise = promise.always(subscription::unsubscribe);
             }
 
@@ -189,6 +552,9 @@ public class StompConnection {
 
             promise = promise.always(() -> {
                 this.close();
+                this.failures = 0;
+                this.reconnectDeadline = System.nanoTime();
+                this.endpoint.markHealthy();
 
                 if (log.isDebugEnabled()) {
                     log.debug("Disconnected  from" + this);
@@ -202,36 +568,89 @@ public class StompConnection {
     }
 
     /**
-     * Close connection.
+     * Close connection without delaying the next connect attempt.
      */
     public void close() {
+        this.close(false);
+    }
+
+    /**
+     * Close connection.
+     * Queued acks and nacks are dropped because their message ids are only valid for the closed session.
+     * Frames waiting for the connected state, like pipelined subscribe frames, are dropped as well, otherwise they
+     * would be written before the connect frame of the next session.
+     * Frames that have been written but whose receipt has not been requested yet are failed, since their receipt
+     * batch can not be confirmed by the closed session anymore.
+     * After a failure the next connect attempt is delayed by an exponential backoff.
+     *
+     * @param failed true if the connection failed, e.g. on connect or io errors or missing heart-beats
+     */
+    public void close(final boolean failed) {
         try {
             if (this.getState() == State.AUTHORIZED) {
                 log.warn("Lost connection to" + this);
             }
             this.connectionPromise = null;
+            this.connectDeferred = null;
+            if (this.heartBeat != null) {
+                this.heartBeat.cancel();
+                this.heartBeat = null;
+            }
             this.serializer = null;
             this.deserializer = null;
+            this.selectionKey = null;
+            this.readPaused.set(false);
+
+            final List<Deferred<StompFrameContext>> unconfirmedFrames;
+            synchronized (this.unconfirmed) {
+                unconfirmedFrames = new ArrayList<>(this.unconfirmed);
+                this.unconfirmed.clear();
+            }
+            for (final Deferred<StompFrameContext> deferred : unconfirmedFrames) {
+                deferred.reject(new IllegalStateException(
+                        "Connection to " + this + " has been closed before the frame has been confirmed"
+                ));
+            }
 
             if (this.channel != null) {
-                if (this.channel.isConnected()) {
+                if (this.channel.isOpen()) {
                     this.channel.close();
                 }
                 this.channel = null;
             }
 
-            for (final StompSubscription subscription : subscriptions) {
+            for (final StompSubscription subscription : subscriptions.values()) {
                 subscription.reset();
             }
+            this.transmitQueue.discard(
+                    job -> job.getCondition() == this.connected || isAcknowledgement(job.getContext().getFrame()),
+                    new IllegalStateException("Connection to " + this + " has been closed")
+            );
         } catch (final Exception ex) {
             if (log.isErrorEnabled()) {
                 log.error("Could not close {}", this, ex);
             }
         } finally {
+            if (failed) {
+                this.backoff();
+            }
             this.setState(State.DISCONNECTED);
         }
     }
 
+    /**
+     * Check if the given frame acknowledges or rejects a message.
+     *
+     * @param frame frame
+     * @return true for ack and nack frames
+     */
+    private static boolean isAcknowledgement(final StompFrame frame) {
+        boolean acknowledgement = false;
+        acknowledgement = acknowledgement || StompAction.ACK.value().equals(frame.getAction());
+        acknowledgement = acknowledgement || StompAction.NACK.value().equals(frame.getAction());
+        return acknowledgement;
+    }
+
     /**
      * Create a new subscription for the given destination using a random id and the given handler.
      *
@@ -259,15 +678,114 @@ public class StompConnection {
             @NonNull final String destination,
             @NonNull final StompFrameContextHandler handler
     ) {
-        final StompSubscription subscription = new StompSubscription(
+        return createSubscription(subscriptionId, destination, null, 1, handler);
+    }
+
+    /**
+     * Create a new subscription for the given destination using a random id and the given handler.
+     * Frames are handled on the given amount of lanes selected by their partition key, frames with the same key
+     * are handled in order.
+     *
+     * @param destination destination
+     * @param partitionKey partition key extractor, e.g. reading a group header
+     * @param parallelism amount of lanes
+     * @param handler handler
+     * @return subscription
+     */
+    public StompSubscription createSubscription(
+            @NonNull final String destination,
+            @NonNull final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            @NonNull final StompFrameContextHandler handler
+    ) {
+        return createSubscription(UUID.randomUUID().toString(), destination, partitionKey, parallelism, handler);
+    }
+
+    /**
+     * Create a new subscription for the given destination using the given id and the given handler.
+     * Frames are handled on the given amount of lanes selected by their partition key, frames with the same key
+     * are handled in order.
+     *
+     * @param subscriptionId id
+     * @param destination destination
+     * @param partitionKey partition key extractor, may only be null for a single lane
+     * @param parallelism amount of lanes
+     * @param handler handler
+     * @return subscription
+     */
+    public StompSubscription createSubscription(
+            @NonNull final String subscriptionId,
+            @NonNull final String destination,
+            final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            @NonNull final StompFrameContextHandler handler
+    ) {
+        return this.addSubscription(new StompSubscription(
                 stompContext,
                 this,
                 subscriptionId,
                 destination,
+                partitionKey,
+                parallelism,
                 handler
-        );
-        this.subscriptions.add(subscription);
-        this.stompContext.getSelector().wakeup();
+        ));
+    }
+
+    /**
+     * Create a new subscription for the given destination using a random id that hands batches of frames to the
+     * batch handler of the given policy.
+     *
+     * @param destination destination
+     * @param batchPolicy batch policy
+     * @return subscription
+     */
+    public StompSubscription createSubscription(
+            @NonNull final String destination,
+            @NonNull final StompBatchPolicy batchPolicy
+    ) {
+        return createSubscription(UUID.randomUUID().toString(), destination, null, 1, batchPolicy);
+    }
+
+    /**
+     * Create a new subscription for the given destination using the given id that hands batches of frames to the
+     * batch handler of the given policy.
+     * Batches are collected per lane selected by the partition key of the frames.
+     *
+     * @param subscriptionId id
+     * @param destination destination
+     * @param partitionKey partition key extractor, may only be null for a single lane
+     * @param parallelism amount of lanes
+     * @param batchPolicy batch policy
+     * @return subscription
+     */
+    public StompSubscription createSubscription(
+            @NonNull final String subscriptionId,
+            @NonNull final String destination,
+            final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            @NonNull final StompBatchPolicy batchPolicy
+    ) {
+        return this.addSubscription(new StompSubscription(
+                stompContext,
+                this,
+                subscriptionId,
+                destination,
+                partitionKey,
+                parallelism,
+                batchPolicy
+        ));
+    }
+
+    /**
+     * Register a newly created subscription.
+     *
+     * @param subscription subscription
+     * @return subscription
+     */
+    private StompSubscription addSubscription(final StompSubscription subscription) {
+        this.subscriptions.put(subscription.getId(), subscription);
+        this.pendingSubscriptions.add(subscription);
+        this.eventLoop.wakeup();
         return subscription;
     }
 
@@ -277,18 +795,24 @@ public class StompConnection {
      * @return subscriptions
      */
     public List<StompSubscription> getSubscriptions() {
-        return Collections.unmodifiableList(subscriptions);
+        return Collections.unmodifiableList(new ArrayList<>(subscriptions.values()));
     }
 
     /**
      * Get subscriptions that need registrations.
+     * Only subscriptions marked as pending are inspected, registered ones are dropped from the pending set.
      *
      * @return subscriptions
      */
     public List<StompSubscription> getSubscriptionsForRegistration() {
         List<StompSubscription> result = null;
-        for (final StompSubscription subscription : subscriptions) {
-            if (subscription.getSubscriptionPromise() == null) {
+        final Iterator<StompSubscription> iterator = this.pendingSubscriptions.iterator();
+        while (iterator.hasNext()) {
+            final StompSubscription subscription = iterator.next();
+            if (subscription.getSubscriptionPromise() != null
+                    || this.subscriptions.get(subscription.getId()) != subscription) {
+                iterator.remove();
+            } else {
                 if (result == null) {
                     result = new ArrayList<>();
                 }
@@ -301,6 +825,18 @@ public class StompConnection {
         return result;
     }
 
+    /**
+     * Mark subscription as pending so it is registered with the next call of
+     * {@link #getSubscriptionsForRegistration()}.
+     *
+     * @param subscription subscription
+     */
+    void addPendingSubscription(final StompSubscription subscription) {
+        if (this.subscriptions.get(subscription.getId()) == subscription) {
+            this.pendingSubscriptions.add(subscription);
+        }
+    }
+
     /**
      * Get subscription with the given id.
      *
@@ -310,12 +846,7 @@ public class StompConnection {
     public StompSubscription getSubscription(
             @NonNull final String subscriptionId
     ) {
-        for (final StompSubscription subscription : this.subscriptions) {
-            if (Objects.equals(subscriptionId, subscription.getId())) {
-                return subscription;
-            }
-        }
-        return null;
+        return this.subscriptions.get(subscriptionId);
     }
 
     /**
@@ -327,14 +858,12 @@ public class StompConnection {
     public StompSubscription removeSubscription(
             @NonNull final String subscriptionId
     ) {
-        for (final StompSubscription subscription : this.subscriptions) {
-            if (Objects.equals(subscriptionId, subscription.getId())) {
-                subscription.unsubscribe();
-                this.subscriptions.remove(subscription);
-                return subscription;
-            }
+        final StompSubscription subscription = this.subscriptions.remove(subscriptionId);
+        if (subscription != null) {
+            this.pendingSubscriptions.remove(subscription);
+            subscription.unsubscribe();
         }
-        return null;
+        return subscription;
     }
 
     /**
@@ -485,7 +1014,7 @@ public class StompConnection {
      * @return promise
      */
     public Promise<StompFrameContext> transmitFrame(@NonNull final StompFrame frame) {
-        return this.transmitFrame(frame, () -> this.state == State.AUTHORIZED);
+        return this.transmitFrame(frame, this.authorized);
     }
 
     /**
@@ -520,22 +1049,36 @@ public class StompConnection {
         addReceipt = addReceipt && !context.getFrame().hasHeader(StompHeader.RECEIPT);
         addReceipt = addReceipt && context.getFrame() instanceof ClientFrame;
 
-        if (addReceipt) {
+        if (addReceipt && stompContext.getReceiptInterval() <= 1) {
             final String receipt = UUID.randomUUID().toString();
             context.getFrame().setHeader(StompHeader.RECEIPT, receipt);
         }
 
-        final StompFrameContextHandler handler;
-        if (context.getFrame().hasHeader(StompHeader.RECEIPT)) {
-            handler = c -> Objects.equals(
-                    context.getFrame().getHeader(StompHeader.RECEIPT),
-                    c.getFrame().getHeader(StompHeader.RECEIPT_ID)
-            );
+        if (addReceipt && stompContext.getReceiptInterval() > 1) {
+            return this.transmitFrameAndAwaitReceiptBatch(context, condition);
+        }
+
+        final String receipt = context.getFrame().getHeader(StompHeader.RECEIPT);
+        if (receipt != null) {
+            return this.transmitFrameAndAwaitResponse(context, condition, () -> this.awaitReceipt(receipt));
         } else {
-            handler = null;
+            return this.transmitFrameAndAwaitResponse(context, condition, null);
         }
+    }
 
-        return this.transmitFrameAndAwait(context, condition, handler);
+    /**
+     * Queue the given frames without requesting receipts.
+     * The frames are written once the connection is authorized, usually together in a single socket write.
+     *
+     * @param frames frames
+     */
+    public void transmitFramesWithoutReceipt(@NonNull final List<? extends StompFrame> frames) {
+        for (final StompFrame frame : frames) {
+            final StompFrameContext context = new StompFrameContext();
+            context.setFrame(frame);
+            this.enqueue(new StompFrameTransmitJob(context, this.authorized, null));
+        }
+        this.eventLoop.requestWrite(this);
     }
 
     /**
@@ -549,7 +1092,7 @@ public class StompConnection {
             @NonNull final StompFrameContext context,
             @NonNull final StompFrameContextHandler handler
     ) {
-        return this.transmitFrameAndAwait(context, () -> this.state == State.AUTHORIZED, handler);
+        return this.transmitFrameAndAwait(context, this.authorized, handler);
     }
 
     /**
@@ -564,27 +1107,126 @@ public class StompConnection {
             @NonNull final StompFrameContext context,
             @NonNull final BooleanSupplier condition,
             final StompFrameContextHandler handler
+    ) {
+        if (handler != null) {
+            return this.transmitFrameAndAwaitResponse(context, condition, () -> this.awaitFrame(handler));
+        } else {
+            return this.transmitFrameAndAwaitResponse(context, condition, null);
+        }
+    }
+
+    /**
+     * Transmit frame and await the response registered by the given supplier.
+     *
+     * @param context frame context
+     * @param condition transmit condition
+     * @param response response registration
+     * @return promise
+     */
+    private Promise<StompFrameContext> transmitFrameAndAwaitResponse(
+            final StompFrameContext context,
+            final BooleanSupplier condition,
+            final Supplier<Promise<StompFrameContext>> response
     ) {
         final Deferred<StompFrameContext> result = stompContext.getDeferred().defer();
         try {
-            if (handler != null) {
-                awaitFrame(handler).apply(result);
+            final Deferred<StompFrameContext> transmit;
+            if (response != null) {
+                response.get().apply(result);
 
-                final Deferred<StompFrameContext> transmit = stompContext.getDeferred().defer();
+                transmit = stompContext.getDeferred().defer();
                 transmit.getPromise().fail(result);
-
-                this.transmitJobs.add(new StompFrameTransmitJob(context, condition, transmit));
             } else {
-                this.transmitJobs.add(new StompFrameTransmitJob(context, condition, result));
+                transmit = result;
             }
+
+            this.enqueue(new StompFrameTransmitJob(context, condition, transmit));
+            final TimingWheel.Entry timeout = this.eventLoop.schedule(
+                    this.createDeadline(null),
+                    () -> this.expire(transmit)
+            );
+            transmit.getPromise().always(timeout::cancel);
+        } catch (final Exception ex) {
+            result.reject(ex);
+        } finally {
+            this.eventLoop.requestWrite(this);
+        }
+        return result.getPromise();
+    }
+
+    /**
+     * Transmit frame whose promise is resolved by the receipt of the same or a later frame.
+     *
+     * @param context frame context
+     * @param condition transmit condition
+     * @return promise
+     */
+    private Promise<StompFrameContext> transmitFrameAndAwaitReceiptBatch(
+            final StompFrameContext context,
+            final BooleanSupplier condition
+    ) {
+        final Deferred<StompFrameContext> result = stompContext.getDeferred().defer();
+        try {
+            final StompFrameTransmitJob job = new StompFrameTransmitJob(context, condition, result);
+            job.setReceiptBatched(true);
+
+            this.enqueue(job);
+            final TimingWheel.Entry timeout = this.eventLoop.schedule(
+                    this.createDeadline(null),
+                    () -> this.expire(result)
+            );
+            result.getPromise().always(timeout::cancel);
         } catch (final Exception ex) {
             result.reject(ex);
         } finally {
-            this.stompContext.getSelector().wakeup();
+            this.eventLoop.requestWrite(this);
         }
         return result.getPromise();
     }
 
+    /**
+     * Add job to the transmit queue.
+     *
+     * @param job job
+     */
+    private void enqueue(final StompFrameTransmitJob job) {
+        this.transmitQueue.add(job, this.eventLoop.isEventLoopThread());
+    }
+
+    /**
+     * Track a receipt batched frame that is about to be written and request a receipt for it if the batch is
+     * complete. A batch is complete once it holds the configured amount of frames, its first frame is older than
+     * the configured linger time or the frame is the last receipt batched frame of the current write.
+     * The receipt resolves the promises of all frames of the batch in the order they have been written.
+     *
+     * @param job transmit job
+     * @param last true if no further receipt batched frame is written together with this frame
+     */
+    public void trackReceiptBatch(final StompFrameTransmitJob job, final boolean last) {
+        synchronized (this.unconfirmed) {
+            if (this.unconfirmed.isEmpty()) {
+                this.unconfirmedSince = System.nanoTime();
+            }
+            this.unconfirmed.add(job.getDeferred());
+
+            boolean complete = last;
+            complete = complete || this.unconfirmed.size() >= this.stompContext.getReceiptInterval();
+            complete = complete || System.nanoTime() - this.unconfirmedSince
+                    >= TimeUnit.MILLISECONDS.toNanos(this.stompContext.getReceiptLinger());
+
+            if (complete) {
+                final String receipt = UUID.randomUUID().toString();
+                job.getContext().getFrame().setHeader(StompHeader.RECEIPT, receipt);
+
+                final Promise<StompFrameContext> promise = this.awaitReceipt(receipt);
+                for (final Deferred<StompFrameContext> deferred : this.unconfirmed) {
+                    promise.apply(deferred);
+                }
+                this.unconfirmed.clear();
+            }
+        }
+    }
+
     /**
      * Await frame.
      *
@@ -610,19 +1252,198 @@ public class StompConnection {
     ) {
         final Deferred<StompFrameContext> deferred = stompContext.getDeferred().defer();
         try {
-            final Long validUntil;
-            if (timeout != null) {
-                validUntil = System.currentTimeMillis() + timeout;
-            } else {
-                validUntil = System.currentTimeMillis() + this.stompContext.getTimeout();
-            }
-            this.awaitJobs.add(new StompFrameAwaitJob(handler, deferred, validUntil));
+            final StompFrameAwaitJob job = new StompFrameAwaitJob(handler, deferred, this.createDeadline(timeout));
+            this.awaitJobs.add(job);
+            final TimingWheel.Entry timeout = this.eventLoop.schedule(
+                    job.getDeadline(),
+                    () -> this.awaitJobs.remove(job) && this.expire(deferred)
+            );
+            deferred.getPromise().always(timeout::cancel);
         } catch (final Exception ex) {
             deferred.reject(ex);
         }
         return deferred.getPromise();
     }
 
+    /**
+     * Await receipt frame with the given receipt id.
+     * Receipt awaits are indexed by receipt id, so matching a receipt does not depend on the number of awaits.
+     *
+     * @param receiptId receipt id
+     * @return promise
+     */
+    public Promise<StompFrameContext> awaitReceipt(
+            @NonNull final String receiptId
+    ) {
+        final Deferred<StompFrameContext> deferred = stompContext.getDeferred().defer();
+        try {
+            final StompFrameContextHandler handler = c -> Objects.equals(
+                    receiptId,
+                    c.getFrame().getHeader(StompHeader.RECEIPT_ID)
+            );
+            final StompFrameAwaitJob job = new StompFrameAwaitJob(handler, deferred, this.createDeadline(null));
+            this.receiptJobs.put(receiptId, job);
+
+            final StompEndpoint current = this.endpoint;
+            final long registered = System.nanoTime();
+            deferred.getPromise().then(() -> current.recordReceiptTime(System.nanoTime() - registered));
+
+            final TimingWheel.Entry timeout = this.eventLoop.schedule(
+                    job.getDeadline(),
+                    () -> this.receiptJobs.remove(receiptId, job) && this.expire(deferred)
+            );
+            deferred.getPromise().always(() -> {
+                timeout.cancel();
+                this.receiptJobs.remove(receiptId, job);
+            });
+        } catch (final Exception ex) {
+            deferred.reject(ex);
+        }
+        return deferred.getPromise();
+    }
+
+    /**
+     * Create deadline for the given timeout or the context timeout.
+     *
+     * @param timeout timeout in milliseconds or null
+     * @return deadline based on {@link System#nanoTime()}
+     */
+    private long createDeadline(final Long timeout) {
+        final long millis;
+        if (timeout != null) {
+            millis = timeout;
+        } else {
+            millis = this.stompContext.getTimeout();
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Reject the given deferred with a timeout unless it is already done.
+     *
+     * @param deferred deferred
+     * @return true if the deferred has been rejected
+     */
+    private boolean expire(final Deferred<StompFrameContext> deferred) {
+        if (deferred.getPromise().isDone()) {
+            return false;
+        } else {
+            if (log.isDebugEnabled()) {
+                log.debug("Rejecting expired job for {}", this);
+            }
+            deferred.reject(new TimeoutException());
+            return true;
+        }
+    }
+
+    /**
+     * Register or remove interest in write readiness of the channel.
+     * Write interest is required while serialized frames could not be written completely.
+     *
+     * @param write write interest
+     */
+    public void setWriteInterest(final boolean write) {
+        final SelectionKey key = this.selectionKey;
+        if (key != null && key.isValid()) {
+            final int ops;
+            if (write) {
+                ops = key.interestOps() | SelectionKey.OP_WRITE;
+            } else {
+                ops = key.interestOps() & ~SelectionKey.OP_WRITE;
+            }
+            if (ops != key.interestOps()) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Register or remove interest in read readiness of the channel.
+     * Read interest is removed while the handlers fall behind, so the broker is slowed down by tcp flow control.
+     *
+     * @param read read interest
+     */
+    public void setReadInterest(final boolean read) {
+        final SelectionKey key = this.selectionKey;
+        if (key != null && key.isValid()) {
+            final int ops;
+            if (read) {
+                ops = key.interestOps() | SelectionKey.OP_READ;
+            } else {
+                ops = key.interestOps() & ~SelectionKey.OP_READ;
+            }
+            if (ops != key.interestOps()) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Get amount of received frames waiting for the handlers of the subscriptions of this connection.
+     *
+     * @return pending frames
+     */
+    public int getPendingDispatch() {
+        return this.pendingDispatch.get();
+    }
+
+    /**
+     * Check if reading is paused because too many frames are waiting for dispatch.
+     *
+     * @return true if paused
+     */
+    public boolean isReadPaused() {
+        return this.readPaused.get();
+    }
+
+    /**
+     * Count a frame queued for dispatch.
+     * Reading is paused once the dispatch high water mark of the context is reached.
+     * Called by the event loop while reading frames.
+     */
+    void dispatchQueued() {
+        final int highWaterMark = this.stompContext.getDispatchHighWaterMark();
+        final int pending = this.pendingDispatch.incrementAndGet();
+        if (highWaterMark > 0 && pending >= highWaterMark && this.readPaused.compareAndSet(false, true)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Pausing read of {} with {} pending frames", this, pending);
+            }
+            this.setReadInterest(false);
+            if (this.pendingDispatch.get() <= this.stompContext.getDispatchLowWaterMark()) {
+                this.resumeRead();
+            }
+        }
+    }
+
+    /**
+     * Count frames that left dispatch because they have been handled or rejected.
+     * Reading is resumed once the dispatch low water mark of the context is reached.
+     *
+     * @param count amount of frames
+     */
+    void dispatchCompleted(final int count) {
+        final int pending = this.pendingDispatch.addAndGet(-count);
+        if (this.readPaused.get() && pending <= this.stompContext.getDispatchLowWaterMark()) {
+            this.resumeRead();
+        }
+    }
+
+    /**
+     * Resume reading on the event loop.
+     * Frames already buffered by the deserializer are read immediately, since they do not raise read readiness.
+     */
+    private void resumeRead() {
+        if (this.readPaused.compareAndSet(true, false)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Resuming read of {}", this);
+            }
+            this.eventLoop.submit(() -> {
+                this.setReadInterest(true);
+                this.eventLoop.requestRead(this);
+            });
+        }
+    }
+
     /**
      * Apply interceptors to the given frame context.
      *
@@ -646,8 +1467,8 @@ public class StompConnection {
         builder.append(this.getClass().getSimpleName());
         builder.append('(');
         builder.append("id: ").append(id);
-        builder.append(", host: ").append(host);
-        builder.append(", port: ").append(port);
+        builder.append(", host: ").append(this.getHost());
+        builder.append(", port: ").append(this.getPort());
         builder.append(", state: ").append(state);
         if (this.getConnectFrame().getLogin() != null) {
             builder.append(", login: ").append(this.getConnectFrame().getLogin());
@@ -656,18 +1477,31 @@ public class StompConnection {
         return builder.toString();
     }
 
+    /**
+     * Get host of the current endpoint.
+     *
+     * @return host
+     */
+    public String getHost() {
+        return this.endpoint.getHost();
+    }
+
+    /**
+     * Get port of the current endpoint.
+     *
+     * @return port
+     */
+    public int getPort() {
+        return this.endpoint.getPort();
+    }
+
     /**
      * Get current state.
      *
      * @return state
      */
     public State getState() {
-        try {
-            this.stateLock.readLock().lock();
-            return state;
-        } finally {
-            this.stateLock.readLock().unlock();
-        }
+        return this.state;
     }
 
     /**
@@ -676,14 +1510,9 @@ public class StompConnection {
      * @param state state
      */
     public void setState(final State state) {
-        try {
-            this.stateLock.writeLock().lock();
-            log.debug("Connection state for {} changing to {} ", this, state);
-            this.state = state;
-            this.stompContext.getSelector().wakeup();
-        } finally {
-            this.stateLock.writeLock().unlock();
-        }
+        log.debug("Connection state for {} changing to {} ", this, state);
+        this.state = state;
+        this.eventLoop.requestWrite(this);
     }
 
     /**
@@ -694,6 +1523,10 @@ public class StompConnection {
          * Connection is not connected to server.
          */
         DISCONNECTED,
+        /**
+         * Connection is waiting for the socket to be connected.
+         */
+        CONNECTING,
         /**
          * Connection is connected to server.
          */
@@ -703,4 +1536,28 @@ public class StompConnection {
          */
         AUTHORIZED
     }
+
+    /**
+     * Transmit condition that waits for a connection state.
+     * Jobs using a state condition are grouped by the transmit queue and released together once the state is
+     * reached.
+     */
+    public final class StateCondition implements BooleanSupplier {
+        @Getter
+        private final State state;
+
+        /**
+         * Create a new condition for the given state.
+         *
+         * @param state state
+         */
+        private StateCondition(final State state) {
+            this.state = state;
+        }
+
+        @Override
+        public boolean getAsBoolean() {
+            return StompConnection.this.state == this.state;
+        }
+    }
 }
@@ -0,0 +1,205 @@
+package de.lancom.systems.stomp.core.connection;
+
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * Broker endpoint a connection can connect to.
+ * Connect times and receipt round trip times are tracked as moving averages in nanoseconds, so a connection with
+ * several endpoints can prefer the fastest one. Endpoints that failed are avoided until their quarantine ends.
+ * Endpoints of the same broker address can share their {@link Statistics}, so all connections of a pool learn from
+ * the measurements and failures of each other.
+ */
+public class StompEndpoint {
+
+    private static final int SMOOTHING = 8;
+
+    @Getter
+    private final String host;
+    @Getter
+    private final int port;
+    @Getter
+    private final String login;
+    @Getter
+    private final String passcode;
+    @Getter
+    private final Statistics statistics;
+
+    /**
+     * Create a new endpoint.
+     *
+     * @param host host
+     * @param port port
+     */
+    public StompEndpoint(final String host, final int port) {
+        this(host, port, null, null);
+    }
+
+    /**
+     * Create a new endpoint with its own credentials.
+     *
+     * @param host host
+     * @param port port
+     * @param login login or null to keep the login of the connect frame
+     * @param passcode passcode
+     */
+    public StompEndpoint(final String host, final int port, final String login, final String passcode) {
+        this(host, port, login, passcode, new Statistics());
+    }
+
+    /**
+     * Create a new endpoint with its own credentials that shares the given statistics.
+     *
+     * @param host host
+     * @param port port
+     * @param login login or null to keep the login of the connect frame
+     * @param passcode passcode
+     * @param statistics statistics of the broker address
+     */
+    public StompEndpoint(
+            final String host,
+            final int port,
+            final String login,
+            final String passcode,
+            final Statistics statistics
+    ) {
+        this.host = host;
+        this.port = port;
+        this.login = login;
+        this.passcode = passcode;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Select the endpoint for the next connect attempt.
+     * Healthy endpoints are preferred by their latency, endpoints without measurements are tried first.
+     * If all endpoints failed, the one whose quarantine ends first is selected.
+     *
+     * @param endpoints endpoints
+     * @param now current time based on {@link System#nanoTime()}
+     * @return endpoint
+     */
+    public static StompEndpoint select(final List<StompEndpoint> endpoints, final long now) {
+        StompEndpoint healthy = null;
+        StompEndpoint recovering = null;
+        for (final StompEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) {
+                if (healthy == null || endpoint.getLatency() < healthy.getLatency()) {
+                    healthy = endpoint;
+                }
+            } else if (recovering == null
+                    || endpoint.statistics.failedUntil - recovering.statistics.failedUntil < 0) {
+                recovering = endpoint;
+            }
+        }
+        if (healthy != null) {
+            return healthy;
+        } else {
+            return recovering;
+        }
+    }
+
+    /**
+     * Record the time a connect took.
+     *
+     * @param nanos connect time in nanoseconds
+     */
+    public void recordConnectTime(final long nanos) {
+        this.statistics.connectTime = smooth(this.statistics.connectTime, nanos);
+    }
+
+    /**
+     * Record the time a receipt took.
+     *
+     * @param nanos receipt round trip time in nanoseconds
+     */
+    public void recordReceiptTime(final long nanos) {
+        this.statistics.receiptTime = smooth(this.statistics.receiptTime, nanos);
+    }
+
+    /**
+     * Get average connect time.
+     *
+     * @return connect time in nanoseconds
+     */
+    public long getConnectTime() {
+        return this.statistics.connectTime;
+    }
+
+    /**
+     * Get average receipt round trip time.
+     *
+     * @return receipt time in nanoseconds
+     */
+    public long getReceiptTime() {
+        return this.statistics.receiptTime;
+    }
+
+    /**
+     * Get latency used to compare endpoints.
+     *
+     * @return sum of average connect time and average receipt round trip time in nanoseconds
+     */
+    public long getLatency() {
+        return this.statistics.connectTime + this.statistics.receiptTime;
+    }
+
+    /**
+     * Mark endpoint as failed until the given time.
+     *
+     * @param until end of quarantine based on {@link System#nanoTime()}
+     */
+    public void markFailed(final long until) {
+        this.statistics.failedUntil = until;
+        this.statistics.failed = true;
+    }
+
+    /**
+     * Mark endpoint as healthy.
+     */
+    public void markHealthy() {
+        this.statistics.failed = false;
+    }
+
+    /**
+     * Check if the endpoint is healthy.
+     *
+     * @param now current time based on {@link System#nanoTime()}
+     * @return true if the endpoint did not fail or its quarantine ended
+     */
+    public boolean isHealthy(final long now) {
+        return !this.statistics.failed || now - this.statistics.failedUntil >= 0;
+    }
+
+    /**
+     * Add sample to moving average.
+     *
+     * @param average current average or zero if nothing has been measured yet
+     * @param sample sample
+     * @return new average
+     */
+    private static long smooth(final long average, final long sample) {
+        if (average == 0) {
+            return sample;
+        } else {
+            return average + (sample - average) / SMOOTHING;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.host + ":" + this.port;
+    }
+
+    /**
+     * Latency averages and quarantine of a broker address.
+     * Updates of concurrent connections may overwrite each other, which only drops single samples.
+     */
+    public static final class Statistics {
+        private volatile long connectTime;
+        private volatile long receiptTime;
+        private volatile boolean failed;
+        private volatile long failedUntil;
+    }
+}
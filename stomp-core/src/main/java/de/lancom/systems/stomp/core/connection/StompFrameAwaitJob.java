@@ -6,6 +6,7 @@ import lombok.NonNull;
 
 /**
  * Stomp frame receive job.
+ * The deadline is based on {@link System#nanoTime()}.
  */
 @Data
 public class StompFrameAwaitJob {
@@ -14,5 +15,5 @@ public class StompFrameAwaitJob {
     @NonNull
     private final Deferred<StompFrameContext> deferred;
     @NonNull
-    private final Long validUntil;
+    private final Long deadline;
 }
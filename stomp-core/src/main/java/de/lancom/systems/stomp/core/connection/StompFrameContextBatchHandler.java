@@ -0,0 +1,17 @@
+package de.lancom.systems.stomp.core.connection;
+
+import java.util.List;
+
+/**
+ * Stomp frame callback for batches of frames.
+ */
+public interface StompFrameContextBatchHandler {
+    /**
+     * Handle given stomp frame contexts.
+     *
+     * @param contexts contexts in the order they have been received
+     * @return handled flag for each context in the same order
+     * @throws Exception if an error occurs, all frames of the batch count as not handled
+     */
+    List<Boolean> handle(List<StompFrameContext> contexts) throws Exception;
+}
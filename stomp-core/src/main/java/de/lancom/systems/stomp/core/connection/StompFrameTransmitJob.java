@@ -1,5 +1,6 @@
 package de.lancom.systems.stomp.core.connection;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BooleanSupplier;
 
 import de.lancom.systems.defer.Deferred;
@@ -14,9 +15,16 @@ public class StompFrameTransmitJob {
 
     @NonNull
     private final StompFrameContext context;
-    @NonNull
     private final BooleanSupplier condition;
 
     private final Deferred<StompFrameContext> deferred;
 
+    private boolean receiptBatched;
+
+    private long size;
+
+    private long sequence;
+
+    private final AtomicBoolean queued = new AtomicBoolean();
+
 }
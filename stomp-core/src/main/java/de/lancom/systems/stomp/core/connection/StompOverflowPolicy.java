@@ -0,0 +1,24 @@
+package de.lancom.systems.stomp.core.connection;
+
+/**
+ * Behaviour of a full transmit queue.
+ */
+public enum StompOverflowPolicy {
+    /**
+     * Block the transmitting thread until space is available or the context timeout passed.
+     */
+    BLOCK,
+    /**
+     * Reject the promise of the new frame.
+     */
+    FAIL,
+    /**
+     * Drop the oldest queued send frames until the new frame fits.
+     * Protocol frames are never dropped, the new frame is rejected if no send frame can be dropped.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new frame.
+     */
+    DROP_NEWEST
+}
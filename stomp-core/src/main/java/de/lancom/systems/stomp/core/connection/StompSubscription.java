@@ -1,8 +1,19 @@
 package de.lancom.systems.stomp.core.connection;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import de.lancom.systems.defer.Deferred;
 import de.lancom.systems.defer.Promise;
 import de.lancom.systems.stomp.core.StompContext;
+import de.lancom.systems.stomp.core.util.SerialExecutor;
+import de.lancom.systems.stomp.core.util.TimingWheel;
+import de.lancom.systems.stomp.core.wire.StompHeader;
 import de.lancom.systems.stomp.core.wire.frame.SubscribeFrame;
 import de.lancom.systems.stomp.core.wire.frame.UnsubscribeFrame;
 import lombok.Getter;
@@ -25,6 +36,12 @@ public class StompSubscription {
     private final StompFrameContextHandler handler;
     @Getter
     private Promise<Void> subscriptionPromise;
+    @Getter
+    private final StompBatchPolicy batchPolicy;
+    private final Function<StompFrameContext, String> partitionKey;
+    private final Lane[] lanes;
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private final StompAckCoalescer ackCoalescer;
 
     /**
      * Create a new stomp subscription.
@@ -42,11 +59,107 @@ public class StompSubscription {
             final String destination,
             final StompFrameContextHandler handler
     ) {
+        this(stompContext, connection, id, destination, null, 1, handler);
+    }
+
+    /**
+     * Create a new stomp subscription that handles frames with different partition keys in parallel.
+     * Frames with the same key are handled in the order they have been received.
+     * Frames without key are handled in order on the first lane.
+     *
+     * @param stompContext stomp context
+     * @param connection connection
+     * @param id id
+     * @param destination destination
+     * @param partitionKey partition key extractor, may only be null for a single lane
+     * @param parallelism amount of lanes
+     * @param handler handler
+     */
+    public StompSubscription(
+            final StompContext stompContext,
+            final StompConnection connection,
+            final String id,
+            final String destination,
+            final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            final StompFrameContextHandler handler
+    ) {
+        this(stompContext, connection, id, destination, partitionKey, parallelism, handler, null);
+    }
+
+    /**
+     * Create a new stomp subscription that hands frames to the batch handler of the given policy.
+     * Frames are collected per lane, frames with the same partition key are part of batches in the order they have
+     * been received.
+     *
+     * @param stompContext stomp context
+     * @param connection connection
+     * @param id id
+     * @param destination destination
+     * @param partitionKey partition key extractor, may only be null for a single lane
+     * @param parallelism amount of lanes
+     * @param batchPolicy batch policy
+     */
+    public StompSubscription(
+            final StompContext stompContext,
+            final StompConnection connection,
+            final String id,
+            final String destination,
+            final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            final StompBatchPolicy batchPolicy
+    ) {
+        this(stompContext, connection, id, destination, partitionKey, parallelism, null, batchPolicy);
+    }
+
+    /**
+     * Create a new stomp subscription using either a handler or a batch policy.
+     *
+     * @param stompContext stomp context
+     * @param connection connection
+     * @param id id
+     * @param destination destination
+     * @param partitionKey partition key extractor, may only be null for a single lane
+     * @param parallelism amount of lanes
+     * @param handler handler or null
+     * @param batchPolicy batch policy or null
+     */
+    @SuppressWarnings("checkstyle:parameternumber")
+    private StompSubscription(
+            final StompContext stompContext,
+            final StompConnection connection,
+            final String id,
+            final String destination,
+            final Function<StompFrameContext, String> partitionKey,
+            final int parallelism,
+            final StompFrameContextHandler handler,
+            final StompBatchPolicy batchPolicy
+    ) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        if (parallelism > 1 && partitionKey == null) {
+            throw new IllegalArgumentException("A partition key extractor is required for more than one lane");
+        }
+        if (batchPolicy != null && batchPolicy.getMaxSize() < 1) {
+            throw new IllegalArgumentException("Batches need to hold at least one frame");
+        }
+
         this.stompContext = stompContext;
         this.connection = connection;
         this.subscribeFrame = new SubscribeFrame(id, destination);
         this.unsubscribeFrame = new UnsubscribeFrame(id);
         this.handler = handler;
+        this.batchPolicy = batchPolicy;
+        this.partitionKey = partitionKey;
+        this.ackCoalescer = new StompAckCoalescer(stompContext, this);
+        this.lanes = new Lane[parallelism];
+        for (int index = 0; index < parallelism; index++) {
+            this.lanes[index] = new Lane(new SerialExecutor(
+                    task -> stompContext.getDispatchExecutor().execute(task),
+                    stompContext.getDispatchQueueLimit()
+            ));
+        }
     }
 
     /**
@@ -67,6 +180,203 @@ public class StompSubscription {
         return this.subscribeFrame.getDestination();
     }
 
+    /**
+     * Get amount of frames waiting for the handler.
+     *
+     * @return pending frames
+     */
+    public int getPendingFrames() {
+        return this.pendingFrames.get();
+    }
+
+    /**
+     * Get amount of lanes frames are handled on in parallel.
+     *
+     * @return parallelism
+     */
+    public int getParallelism() {
+        return this.lanes.length;
+    }
+
+    /**
+     * Queue frame for the handler.
+     * Frames of the same lane are handled one after another in the order they have been received.
+     * Frames exceeding the dispatch queue limit of the context are rejected.
+     *
+     * @param context frame context
+     */
+    public void dispatch(final StompFrameContext context) {
+        final String ack = context.getFrame().getHeader(StompHeader.ACK);
+        if (ack != null) {
+            this.ackCoalescer.received(ack);
+        }
+        this.pendingFrames.incrementAndGet();
+        this.connection.dispatchQueued();
+        final Lane lane = this.selectLane(context);
+        if (this.batchPolicy == null) {
+            this.execute(lane, Collections.singletonList(context), () -> this.handle(context));
+        } else {
+            synchronized (lane) {
+                lane.batch.add(context);
+                if (lane.batch.size() >= this.batchPolicy.getMaxSize()) {
+                    this.flush(lane);
+                } else if (lane.batch.size() == 1) {
+                    final List<StompFrameContext> batch = lane.batch;
+                    final long deadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(this.batchPolicy.getMaxLinger());
+                    lane.linger = this.connection.getEventLoop().schedule(deadline, () -> {
+                        synchronized (lane) {
+                            if (lane.batch == batch) {
+                                this.flush(lane);
+                            }
+                        }
+                        return false;
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand the collected batch of the given lane to the batch handler.
+     * Must be called while holding the lane monitor.
+     *
+     * @param lane lane
+     */
+    private void flush(final Lane lane) {
+        final List<StompFrameContext> batch = lane.batch;
+        lane.batch = new ArrayList<>();
+        if (lane.linger != null) {
+            lane.linger.cancel();
+            lane.linger = null;
+        }
+        this.execute(lane, batch, () -> this.handle(batch));
+    }
+
+    /**
+     * Run task on the given lane and reject the given frames if the lane is full.
+     *
+     * @param lane lane
+     * @param contexts frame contexts handled by the task
+     * @param task task
+     */
+    private void execute(final Lane lane, final List<StompFrameContext> contexts, final Runnable task) {
+        try {
+            lane.executor.execute(task);
+        } catch (final RejectedExecutionException ex) {
+            if (log.isErrorEnabled()) {
+                log.error(
+                        "Rejected {} frames for subscription {} on {}",
+                        contexts.size(),
+                        this.getId(),
+                        connection,
+                        ex
+                );
+            }
+            for (final StompFrameContext context : contexts) {
+                this.acknowledge(context, false);
+            }
+            this.completed(contexts.size());
+        }
+    }
+
+    /**
+     * Select lane for the given frame using its partition key.
+     * Frames without key or whose key can not be extracted are handled on the first lane.
+     *
+     * @param context frame context
+     * @return lane
+     */
+    private Lane selectLane(final StompFrameContext context) {
+        if (this.lanes.length == 1) {
+            return this.lanes[0];
+        }
+
+        final String key;
+        try {
+            key = this.partitionKey.apply(context);
+        } catch (final Exception ex) {
+            if (log.isWarnEnabled()) {
+                log.warn("Partition key of subscription {} failed, using first lane", this.getId(), ex);
+            }
+            return this.lanes[0];
+        }
+        if (key == null) {
+            return this.lanes[0];
+        }
+
+        final int hash = key.hashCode();
+        return this.lanes[Math.floorMod(hash ^ hash >>> Short.SIZE, this.lanes.length)];
+    }
+
+    /**
+     * Run handler for the given frame and acknowledge it.
+     *
+     * @param context frame context
+     */
+    private void handle(final StompFrameContext context) {
+        boolean success = false;
+        try {
+            success = this.handler.handle(context);
+        } catch (final Exception ex) {
+            success = false;
+        }
+        this.acknowledge(context, success);
+        this.completed(1);
+    }
+
+    /**
+     * Run batch handler for the given frames and acknowledge them.
+     * Frames without a result count as not handled.
+     *
+     * @param contexts frame contexts
+     */
+    private void handle(final List<StompFrameContext> contexts) {
+        List<Boolean> results = null;
+        try {
+            results = this.batchPolicy.getHandler().handle(contexts);
+        } catch (final Exception ex) {
+            if (log.isErrorEnabled()) {
+                log.error("Batch handler of subscription {} failed", this.getId(), ex);
+            }
+        }
+
+        for (int index = 0; index < contexts.size(); index++) {
+            final boolean success = results != null
+                    && index < results.size()
+                    && Boolean.TRUE.equals(results.get(index));
+            this.acknowledge(contexts.get(index), success);
+        }
+        this.completed(contexts.size());
+    }
+
+    /**
+     * Count frames that are no longer pending on this subscription and its connection.
+     *
+     * @param count amount of frames
+     */
+    private void completed(final int count) {
+        this.pendingFrames.addAndGet(-count);
+        this.connection.dispatchCompleted(count);
+    }
+
+    /**
+     * Send ack or nack for the given frame if the frame requires acknowledgement.
+     *
+     * @param context frame context
+     * @param success true for ack, false for nack
+     */
+    private void acknowledge(final StompFrameContext context, final boolean success) {
+        final String ack = context.getFrame().getHeader(StompHeader.ACK);
+        if (ack != null) {
+            if (success) {
+                this.ackCoalescer.ack(ack);
+            } else {
+                this.ackCoalescer.nack(ack);
+            }
+        }
+    }
+
     /**
      * Check subscription state.
      *
@@ -81,6 +391,8 @@ public class StompSubscription {
      */
     public void reset() {
         this.subscriptionPromise = null;
+        this.ackCoalescer.reset();
+        this.connection.addPendingSubscription(this);
     }
 
     /**
@@ -90,7 +402,22 @@ public class StompSubscription {
      */
     public Promise<Void> subscribe() {
         synchronized (this) {
+            final Deferred<Void> deferred = this.prepareSubscribe();
+            if (deferred != null) {
+                this.completeSubscribe(this.connection.transmitFrame(subscribeFrame), deferred);
+            }
+            return this.subscriptionPromise;
+        }
+    }
 
+    /**
+     * Mark subscription as subscribing unless it is already subscribing or subscribed.
+     * The caller is responsible for transmitting the subscribe frame and completing the returned deferred.
+     *
+     * @return subscription deferred or null if no subscribe frame has to be sent
+     */
+    Deferred<Void> prepareSubscribe() {
+        synchronized (this) {
             if (this.subscriptionPromise == null) {
                 final Deferred<Void> deferred = this.stompContext.getDeferred().defer();
                 this.subscriptionPromise = deferred.getPromise();
@@ -98,19 +425,29 @@ public class StompSubscription {
                 if (log.isDebugEnabled()) {
                     log.debug("Subscribing as {} to {} on {}", this.getId(), this.getDestination(), connection);
                 }
-
-                this.connection.transmitFrame(subscribeFrame).then(c -> {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Subscribed as {} to {} on {}", this.getId(), this.getDestination(), connection);
-                    }
-                    this.stompContext.getSelector().wakeup();
-                    return null;
-                }).apply(deferred);
+                return deferred;
+            } else {
+                return null;
             }
-            return this.subscriptionPromise;
         }
     }
 
+    /**
+     * Complete the given subscription deferred once the broker confirmed the subscribe frame.
+     *
+     * @param confirmation confirmation of the subscribe frame
+     * @param deferred subscription deferred
+     */
+    void completeSubscribe(final Promise<StompFrameContext> confirmation, final Deferred<Void> deferred) {
+        confirmation.then(c -> {
+            if (log.isDebugEnabled()) {
+                log.debug("Subscribed as {} to {} on {}", this.getId(), this.getDestination(), connection);
+            }
+            this.connection.getEventLoop().wakeup();
+            return null;
+        }).apply(deferred);
+    }
+
     /**
      * Unsubscribe.
      *
@@ -118,13 +455,12 @@ public class StompSubscription {
      */
     public Promise<Void> unsubscribe() {
         if (connection.getState() == StompConnection.State.AUTHORIZED) {
-            this.subscriptionPromise = null;
+            this.reset();
             return stompContext.getDeferred().success();
         } else {
             if (this.subscriptionPromise != null && this.subscriptionPromise.isDone()) {
-                return this.connection.transmitFrame(unsubscribeFrame).always(() -> {
-                    this.subscriptionPromise = null;
-                });
+                this.ackCoalescer.flush();
+                return this.connection.transmitFrame(unsubscribeFrame).always(this::reset);
             } else {
                 return stompContext.getDeferred().success();
             }
@@ -138,4 +474,22 @@ public class StompSubscription {
         this.unsubscribe();
         this.connection.removeSubscription(this.getId());
     }
+
+    /**
+     * Serial lane of a subscription with the batch currently collected for it.
+     */
+    private static final class Lane {
+        private final SerialExecutor executor;
+        private List<StompFrameContext> batch = new ArrayList<>();
+        private TimingWheel.Entry linger;
+
+        /**
+         * Create a new lane.
+         *
+         * @param executor executor
+         */
+        private Lane(final SerialExecutor executor) {
+            this.executor = executor;
+        }
+    }
 }
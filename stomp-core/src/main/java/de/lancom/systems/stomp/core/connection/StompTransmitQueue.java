@@ -0,0 +1,674 @@
+package de.lancom.systems.stomp.core.connection;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+import de.lancom.systems.stomp.core.StompContext;
+import de.lancom.systems.stomp.core.wire.StompAction;
+import de.lancom.systems.stomp.core.wire.StompFrame;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Queue of frames waiting to be transmitted on a connection.
+ * The queue is bounded by the frame and byte limits of the context, the overflow policy of the context decides
+ * what happens to frames that do not fit.
+ * Control frames (ack, nack and unsubscribe) are kept on a separate lane that is not bounded and iterated first,
+ * after the configured amount of consecutive control frames one bulk frame is iterated to avoid starvation.
+ * Frames waiting for a connection state are grouped by that state, only the group of the current state is
+ * iterated. Frames with other transmit conditions are kept in a separate group that is always iterated.
+ * The lanes of the iterated groups are merged by the order the frames have been added, so frames of the same lane
+ * keep their order regardless of their group.
+ * Frames are added by any thread and removed by the event loop of the connection.
+ * If frames are dropped to make space, only send frames that wait for the authorized state or other conditions are
+ * dropped, oldest first. Protocol frames like connect, subscribe and disconnect are never dropped.
+ */
+@Slf4j
+public class StompTransmitQueue implements Iterable<StompFrameTransmitJob> {
+
+    private static final int FRAME_OVERHEAD = 4;
+
+    private final StompContext stompContext;
+    private final Map<StompConnection.State, Lanes> gated = new EnumMap<>(StompConnection.State.class);
+    private final Lanes conditional = new Lanes();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Lock lock = new ReentrantLock();
+    private final Condition space = lock.newCondition();
+
+    /**
+     * Create a new transmit queue.
+     *
+     * @param stompContext stomp context
+     */
+    public StompTransmitQueue(final StompContext stompContext) {
+        this.stompContext = stompContext;
+        for (final StompConnection.State state : StompConnection.State.values()) {
+            this.gated.put(state, new Lanes());
+        }
+    }
+
+    /**
+     * Get amount of queued frames.
+     *
+     * @return depth
+     */
+    public int getDepth() {
+        return this.depth.get();
+    }
+
+    /**
+     * Get estimated size of the queued frames in bytes.
+     *
+     * @return bytes
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Get amount of frames dropped because the queue was full.
+     *
+     * @return dropped frames
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Check if no frames are queued.
+     *
+     * @return empty
+     */
+    public boolean isEmpty() {
+        return this.depth.get() == 0;
+    }
+
+    /**
+     * Add job to the queue applying the overflow policy of the context if the queue is full.
+     * The event loop of the connection is never blocked, frames added by it and control frames are always accepted.
+     * Space is reserved before the job is queued, so concurrent producers can not exceed the limits.
+     *
+     * @param job job
+     * @param eventLoopThread true if called by the event loop of the connection
+     * @return true if the job has been queued
+     */
+    public boolean add(final StompFrameTransmitJob job, final boolean eventLoopThread) {
+        job.setSize(estimateSize(job.getContext().getFrame()));
+
+        final boolean controlFrame = isControlFrame(job.getContext().getFrame());
+        final boolean accepted;
+        if (controlFrame || eventLoopThread) {
+            this.depth.incrementAndGet();
+            this.bytes.addAndGet(job.getSize());
+            accepted = true;
+        } else {
+            accepted = this.reserve(job.getSize()) || this.makeSpace(job);
+        }
+
+        if (accepted) {
+            job.setSequence(this.sequence.incrementAndGet());
+            job.getQueued().set(true);
+            final Lanes lanes = this.selectLanes(job);
+            if (controlFrame) {
+                lanes.control.add(job);
+            } else {
+                lanes.bulk.add(job);
+            }
+        } else {
+            this.reject(job);
+        }
+        return accepted;
+    }
+
+    /**
+     * Iterate over all queued jobs, control frames first.
+     * Removing a job through the iterator releases its space.
+     *
+     * @return iterator
+     */
+    @Override
+    public Iterator<StompFrameTransmitJob> iterator() {
+        JobCursor control = this.conditional.controlIterator();
+        JobCursor bulk = this.conditional.bulkIterator();
+        for (final Lanes lanes : this.gated.values()) {
+            control = new MergeIterator(lanes.controlIterator(), control);
+            bulk = new MergeIterator(lanes.bulkIterator(), bulk);
+        }
+        return new LaneIterator(control, bulk, this.stompContext.getControlFrameBurst());
+    }
+
+    /**
+     * Iterate over the jobs that may be transmitted in the given connection state, control frames first.
+     * Jobs waiting for other states are not visited.
+     * Removing a job through the iterator releases its space.
+     *
+     * @param state current connection state
+     * @return iterator
+     */
+    public Iterator<StompFrameTransmitJob> iterator(final StompConnection.State state) {
+        final Lanes lanes = this.gated.get(state);
+        return new LaneIterator(
+                new MergeIterator(lanes.controlIterator(), this.conditional.controlIterator()),
+                new MergeIterator(lanes.bulkIterator(), this.conditional.bulkIterator()),
+                this.stompContext.getControlFrameBurst()
+        );
+    }
+
+    /**
+     * Remove the given job after it has been transmitted and release its space.
+     *
+     * @param job job
+     * @return true if the job has been queued until now
+     */
+    public boolean remove(final StompFrameTransmitJob job) {
+        return this.release(job);
+    }
+
+    /**
+     * Remove all queued jobs accepted by the given filter and reject their promises with the given reason.
+     * Used to drop frames that must not be transmitted on the next connection.
+     *
+     * @param filter job filter
+     * @param reason rejection reason
+     */
+    public void discard(final Predicate<StompFrameTransmitJob> filter, final Exception reason) {
+        this.conditional.discard(filter, reason);
+        for (final Lanes lanes : this.gated.values()) {
+            lanes.discard(filter, reason);
+        }
+    }
+
+    /**
+     * Select the lanes for the given job by the connection state its condition waits for.
+     *
+     * @param job job
+     * @return lanes
+     */
+    private Lanes selectLanes(final StompFrameTransmitJob job) {
+        if (job.getCondition() instanceof StompConnection.StateCondition) {
+            return this.gated.get(((StompConnection.StateCondition) job.getCondition()).getState());
+        } else {
+            return this.conditional;
+        }
+    }
+
+    /**
+     * Check if the given frame is a control frame that must not wait behind bulk traffic.
+     *
+     * @param frame frame
+     * @return control frame
+     */
+    private static boolean isControlFrame(final StompFrame frame) {
+        final String action = frame.getAction();
+        boolean control = false;
+        control = control || StompAction.ACK.value().equals(action);
+        control = control || StompAction.NACK.value().equals(action);
+        control = control || StompAction.UNSUBSCRIBE.value().equals(action);
+        return control;
+    }
+
+    /**
+     * Reserve space for a frame of the given size if it fits into the queue.
+     * A frame larger than the byte limit is accepted by an empty queue.
+     *
+     * @param size frame size
+     * @return true if the space has been reserved
+     */
+    private boolean reserve(final long size) {
+        boolean depthReserved = false;
+        while (!depthReserved) {
+            final int currentDepth = this.depth.get();
+            if (currentDepth >= this.stompContext.getTransmitQueueLimit()) {
+                return false;
+            }
+            depthReserved = this.depth.compareAndSet(currentDepth, currentDepth + 1);
+        }
+
+        boolean bytesReserved = false;
+        while (!bytesReserved) {
+            final long currentBytes = this.bytes.get();
+            if (currentBytes != 0 && currentBytes + size > this.stompContext.getTransmitQueueBytes()) {
+                this.depth.decrementAndGet();
+                this.signal();
+                return false;
+            }
+            bytesReserved = this.bytes.compareAndSet(currentBytes, currentBytes + size);
+        }
+        return true;
+    }
+
+    /**
+     * Make space for the given job according to the overflow policy and reserve it.
+     *
+     * @param job job
+     * @return true if space has been reserved for the job
+     */
+    private boolean makeSpace(final StompFrameTransmitJob job) {
+        switch (this.stompContext.getOverflowPolicy()) {
+            case BLOCK:
+                return this.await(job.getSize());
+            case DROP_OLDEST:
+                while (!this.reserve(job.getSize())) {
+                    final StompFrameTransmitJob oldest = this.findOldestSend();
+                    if (oldest == null) {
+                        return false;
+                    }
+                    if (this.release(oldest)) {
+                        this.reject(oldest);
+                    }
+                }
+                return true;
+            case DROP_NEWEST:
+            case FAIL:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Find the oldest send frame that may be dropped.
+     * Only send frames waiting for the authorized state or other conditions are considered.
+     *
+     * @return job or null if no send frame is queued
+     */
+    private StompFrameTransmitJob findOldestSend() {
+        final StompFrameTransmitJob authorized = findFirstSend(this.gated.get(StompConnection.State.AUTHORIZED).bulk);
+        final StompFrameTransmitJob other = findFirstSend(this.conditional.bulk);
+        if (authorized == null) {
+            return other;
+        } else if (other == null || authorized.getSequence() < other.getSequence()) {
+            return authorized;
+        } else {
+            return other;
+        }
+    }
+
+    /**
+     * Find the first queued send frame of the given lane.
+     * Jobs that are no longer queued are removed on the way.
+     *
+     * @param lane lane
+     * @return job or null if the lane holds no send frame
+     */
+    private static StompFrameTransmitJob findFirstSend(final Queue<StompFrameTransmitJob> lane) {
+        final Iterator<StompFrameTransmitJob> iterator = lane.iterator();
+        while (iterator.hasNext()) {
+            final StompFrameTransmitJob job = iterator.next();
+            if (!job.getQueued().get()) {
+                iterator.remove();
+            } else if (StompAction.SEND.value().equals(job.getContext().getFrame().getAction())) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait until a frame of the given size fits into the queue and reserve its space.
+     *
+     * @param size frame size
+     * @return true if the space has been reserved before the context timeout passed
+     */
+    private boolean await(final long size) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.stompContext.getTimeout());
+        this.waiting.incrementAndGet();
+        this.lock.lock();
+        try {
+            long remaining = deadline - System.nanoTime();
+            boolean reserved = this.reserve(size);
+            while (!reserved && remaining > 0) {
+                remaining = this.space.awaitNanos(remaining);
+                reserved = this.reserve(size);
+            }
+            return reserved;
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.lock.unlock();
+            this.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reject the promise of a job that has not been or will not be transmitted.
+     *
+     * @param job job
+     */
+    private void reject(final StompFrameTransmitJob job) {
+        final boolean drop = this.stompContext.getOverflowPolicy() == StompOverflowPolicy.DROP_OLDEST
+                || this.stompContext.getOverflowPolicy() == StompOverflowPolicy.DROP_NEWEST;
+        if (drop) {
+            this.dropped.incrementAndGet();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Transmit queue full, rejected {}", job.getContext().getFrame());
+        }
+        if (job.getDeferred() != null) {
+            job.getDeferred().reject(new RejectedExecutionException("Transmit queue is full"));
+        }
+    }
+
+    /**
+     * Release the space of a removed job.
+     *
+     * @param job job
+     * @return true if the job has been queued until now
+     */
+    private boolean release(final StompFrameTransmitJob job) {
+        if (job.getQueued().compareAndSet(true, false)) {
+            this.depth.decrementAndGet();
+            this.bytes.addAndGet(-job.getSize());
+            this.signal();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Wake up producers waiting for space.
+     */
+    private void signal() {
+        if (this.waiting.get() > 0) {
+            this.lock.lock();
+            try {
+                this.space.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Estimate the serialized size of the given frame.
+     *
+     * @param frame frame
+     * @return size in bytes
+     */
+    private static long estimateSize(final StompFrame frame) {
+        long size = frame.getAction().length() + FRAME_OVERHEAD;
+        for (final Map.Entry<String, String> header : frame.getHeaders().entrySet()) {
+            size += header.getKey().length() + 2;
+            if (header.getValue() != null) {
+                size += header.getValue().length();
+            }
+        }
+        if (frame.getBody() != null) {
+            size += frame.getBody().length;
+        }
+        return size;
+    }
+
+    /**
+     * Control and bulk lane of a group of jobs.
+     */
+    private final class Lanes {
+        private final Queue<StompFrameTransmitJob> control = new ConcurrentLinkedQueue<>();
+        private final Queue<StompFrameTransmitJob> bulk = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Iterate over the jobs of the control lane.
+         *
+         * @return iterator
+         */
+        private JobCursor controlIterator() {
+            return new JobIterator(this.control.iterator());
+        }
+
+        /**
+         * Iterate over the jobs of the bulk lane.
+         *
+         * @return iterator
+         */
+        private JobCursor bulkIterator() {
+            return new JobIterator(this.bulk.iterator());
+        }
+
+        /**
+         * Remove the jobs of both lanes accepted by the given filter and reject their promises.
+         *
+         * @param filter job filter
+         * @param reason rejection reason
+         */
+        private void discard(final Predicate<StompFrameTransmitJob> filter, final Exception reason) {
+            this.discard(this.control, filter, reason);
+            this.discard(this.bulk, filter, reason);
+        }
+
+        /**
+         * Remove the jobs of the given lane accepted by the given filter and reject their promises.
+         * Jobs that are transmitted concurrently are left to the event loop.
+         *
+         * @param lane lane
+         * @param filter job filter
+         * @param reason rejection reason
+         */
+        private void discard(
+                final Queue<StompFrameTransmitJob> lane,
+                final Predicate<StompFrameTransmitJob> filter,
+                final Exception reason
+        ) {
+            final Iterator<StompFrameTransmitJob> iterator = lane.iterator();
+            while (iterator.hasNext()) {
+                final StompFrameTransmitJob job = iterator.next();
+                if (filter.test(job) && release(job)) {
+                    iterator.remove();
+                    if (job.getDeferred() != null) {
+                        job.getDeferred().reject(reason);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterator that allows to look at the next job without visiting it.
+     */
+    private interface JobCursor extends Iterator<StompFrameTransmitJob> {
+
+        /**
+         * Get the job returned by the next call of {@link #next()}.
+         *
+         * @return next job or null if there is none
+         */
+        StompFrameTransmitJob peek();
+    }
+
+    /**
+     * Iterator that merges two iterators by the sequence of their jobs.
+     */
+    private static final class MergeIterator implements JobCursor {
+        private final JobCursor first;
+        private final JobCursor second;
+        private JobCursor current;
+
+        /**
+         * Create a new iterator.
+         *
+         * @param first first iterator
+         * @param second second iterator
+         */
+        private MergeIterator(final JobCursor first, final JobCursor second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.first.hasNext() || this.second.hasNext();
+        }
+
+        @Override
+        public StompFrameTransmitJob peek() {
+            final JobCursor cursor = this.select();
+            if (cursor != null) {
+                return cursor.peek();
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public StompFrameTransmitJob next() {
+            final JobCursor cursor = this.select();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            this.current = cursor;
+            return cursor.next();
+        }
+
+        @Override
+        public void remove() {
+            if (this.current == null) {
+                throw new IllegalStateException();
+            }
+            this.current.remove();
+        }
+
+        /**
+         * Select the iterator whose next job has been added first.
+         *
+         * @return iterator or null if both are exhausted
+         */
+        private JobCursor select() {
+            final StompFrameTransmitJob firstJob = this.first.peek();
+            final StompFrameTransmitJob secondJob = this.second.peek();
+            if (firstJob == null && secondJob == null) {
+                return null;
+            } else if (secondJob == null || (firstJob != null && firstJob.getSequence() <= secondJob.getSequence())) {
+                return this.first;
+            } else {
+                return this.second;
+            }
+        }
+    }
+
+    /**
+     * Iterator that skips dropped jobs and releases the space of removed jobs.
+     */
+    private final class JobIterator implements JobCursor {
+        private final Iterator<StompFrameTransmitJob> iterator;
+        private StompFrameTransmitJob next;
+        private StompFrameTransmitJob current;
+
+        /**
+         * Create a new iterator.
+         *
+         * @param iterator queue iterator
+         */
+        private JobIterator(final Iterator<StompFrameTransmitJob> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && this.iterator.hasNext()) {
+                final StompFrameTransmitJob candidate = this.iterator.next();
+                if (candidate.getQueued().get()) {
+                    this.next = candidate;
+                } else {
+                    this.iterator.remove();
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public StompFrameTransmitJob peek() {
+            if (this.hasNext()) {
+                return this.next;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public StompFrameTransmitJob next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.current = this.next;
+            this.next = null;
+            return this.current;
+        }
+
+        @Override
+        public void remove() {
+            if (this.current == null) {
+                throw new IllegalStateException();
+            }
+            release(this.current);
+            this.current = null;
+        }
+    }
+
+    /**
+     * Iterator over the control and the bulk lane that prefers control frames.
+     */
+    private static final class LaneIterator implements Iterator<StompFrameTransmitJob> {
+        private final Iterator<StompFrameTransmitJob> control;
+        private final Iterator<StompFrameTransmitJob> bulk;
+        private final int burst;
+        private Iterator<StompFrameTransmitJob> current;
+        private int streak;
+
+        /**
+         * Create a new iterator.
+         *
+         * @param control control lane iterator
+         * @param bulk bulk lane iterator
+         * @param burst maximum amount of consecutive control frames while bulk frames are waiting
+         */
+        private LaneIterator(
+                final Iterator<StompFrameTransmitJob> control,
+                final Iterator<StompFrameTransmitJob> bulk,
+                final int burst
+        ) {
+            this.control = control;
+            this.bulk = bulk;
+            this.burst = burst;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.control.hasNext() || this.bulk.hasNext();
+        }
+
+        @Override
+        public StompFrameTransmitJob next() {
+            if (this.control.hasNext() && (this.streak < this.burst || !this.bulk.hasNext())) {
+                this.current = this.control;
+                this.streak++;
+            } else {
+                this.current = this.bulk;
+                this.streak = 0;
+            }
+            return this.current.next();
+        }
+
+        @Override
+        public void remove() {
+            if (this.current == null) {
+                throw new IllegalStateException();
+            }
+            this.current.remove();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package de.lancom.systems.stomp.core.util;
 
-import static de.lancom.systems.stomp.core.util.StringUtil.isBlank;
-
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
@@ -11,7 +10,9 @@ import java.nio.charset.CharsetDecoder;
 import de.lancom.systems.stomp.core.wire.StompEncoding;
 
 /**
- * Helper class for channel reading.
+ * Helper class for incremental channel reading.
+ * Unfinished lines and blocks keep their scan position, so every byte is only inspected once
+ * even if its content arrives in many small chunks.
  */
 public class ChannelReader {
 
@@ -20,6 +21,8 @@ public class ChannelReader {
     private final ReadableByteChannel channel;
     private final CharsetDecoder decoder;
     private ByteBuffer buffer;
+    private int scanned;
+    private long received;
 
     /**
      * Create a new buffer.
@@ -36,28 +39,18 @@ public class ChannelReader {
 
     /**
      * Read block of given or unknown length.
+     * Blocks of unknown length are terminated by {@link StompEncoding#TERMINATOR}.
      *
      * @param length expected length
-     * @return block
+     * @return block or null if the block is not complete yet
      * @throws IOException on io error
      */
     public byte[] readBlock(final Integer length) throws IOException {
-
-        int end = -1;
-
+        final int end;
         if (length != null) {
-            end = this.buffer.position() + length;
-            if (!this.fill(end)) {
-                end = -1;
-            }
+            end = this.awaitLength(length);
         } else {
-
-            int position;
-            for (position = this.buffer.position(); end == -1 && this.fill(position); position++) {
-                if (this.buffer.get(position) == StompEncoding.TERMINATOR) {
-                    end = position;
-                }
-            }
+            end = this.scan(StompEncoding.TERMINATOR);
         }
 
         if (end != -1) {
@@ -66,124 +59,125 @@ public class ChannelReader {
                 this.buffer.get(result);
             }
             this.buffer.position(Math.min(end + 1, this.buffer.limit()));
+            this.scanned = 0;
             return result;
         } else {
             return null;
         }
-
     }
 
     /**
      * Read a single line.
      *
-     * @return line
+     * @return line or null if the line is not complete yet
      * @throws IOException on io error
      */
-
     public String readLine() throws IOException {
+        final int position = this.scan(StompEncoding.LINE_FEED);
 
-        int end = -1;
-        int position;
-        for (position = this.buffer.position(); end == -1 && this.fill(position); position++) {
-            if (this.buffer.get(position) == StompEncoding.LINE_FEED) {
-                boolean preceedingCr = true;
-                preceedingCr = preceedingCr && position > this.buffer.position();
-                preceedingCr = preceedingCr && this.buffer.get(position - 1) == StompEncoding.CARRIAGE_RETURN;
-
-                if (preceedingCr) {
-                    end = position - 1;
-                } else {
-                    end = position;
-                }
-
-            } else {
-                end = -1;
+        if (position != -1) {
+            int end = position;
+            if (end > this.buffer.position() && this.buffer.get(end - 1) == StompEncoding.CARRIAGE_RETURN) {
+                end--;
             }
 
-        }
-
-        if (end != -1) {
             final ByteBuffer contentBuffer = this.buffer.duplicate();
             contentBuffer.limit(end);
             final String result = this.decoder.decode(contentBuffer).toString();
-            this.buffer.position(position);
+            this.buffer.position(position + 1);
+            this.scanned = 0;
             return result;
         } else {
             return null;
         }
-
     }
 
     /**
-     * Read history content.
-     * @return history
+     * Get amount of bytes read from the channel so far.
+     *
+     * @return received bytes
      */
-    public byte[] readHistory() {
-        final byte[] result = new byte[this.buffer.position()];
-        if (result.length > 0) {
-            this.buffer.position(0);
-            this.buffer.get(result);
-        }
-        return result;
+    public long getReceived() {
+        return this.received;
     }
 
     /**
-     * Discards all remaining empty lines.
+     * Scan for the given delimiter starting after the bytes that have already been scanned.
      *
+     * @param delimiter delimiter
+     * @return absolute delimiter position or -1 if it is not available yet
      * @throws IOException on io error
      */
-    public void discardEmptyLines() throws IOException {
-        int last;
+    private int scan(final byte delimiter) throws IOException {
         do {
-            last = this.buffer.position();
-        } while (isBlank(this.readLine()));
-        this.buffer.position(last);
+            final int limit = this.buffer.limit();
+            for (int index = this.buffer.position() + this.scanned; index < limit; index++) {
+                if (this.buffer.get(index) == delimiter) {
+                    return index;
+                }
+            }
+            this.scanned = this.buffer.remaining();
+        } while (this.fill(this.buffer.remaining() + 1));
+
+        return -1;
     }
 
     /**
-     * Fill buffer if required.
+     * Wait until the given amount of bytes followed by a terminator is available.
      *
-     * @param position position
-     * @return success
+     * @param length length
+     * @return absolute end position or -1 if the content is not available yet
      * @throws IOException on io error
      */
-    private boolean fill(final int position) throws IOException {
-
-        if (position >= this.buffer.limit() && this.channel.isOpen()) {
-            final int oldPosition = this.buffer.position();
-            if (position >= buffer.capacity()) {
-                final ByteBuffer oldBuffer = this.buffer;
-                oldBuffer.rewind();
-                this.buffer = ByteBuffer.allocate((int) Math.ceil((double) (position + 1) / BUFFER_SIZE) * BUFFER_SIZE);
-                this.buffer.put(oldBuffer);
-                this.buffer.position(oldBuffer.position());
-                this.buffer.limit(oldBuffer.limit());
+    private int awaitLength(final int length) throws IOException {
+        while (this.buffer.remaining() <= length) {
+            if (!this.fill(length + 1)) {
+                return -1;
             }
-            this.buffer.position(this.buffer.limit());
-            this.buffer.limit(this.buffer.capacity());
-            this.channel.read(this.buffer);
-            this.buffer.flip();
-            this.buffer.position(oldPosition);
         }
-
-        return this.buffer.limit() > position;
-
+        return this.buffer.position() + length;
     }
 
     /**
-     * Rewind buffer.
+     * Read available data from the channel.
+     * Consumed content is discarded and the buffer grows if it cannot hold the given amount of bytes.
+     *
+     * @param required amount of unconsumed bytes the buffer needs to be able to hold
+     * @return true if new data has been read
+     * @throws IOException on io error
      */
-    public void rewind() {
-        this.buffer.rewind();
-    }
+    private boolean fill(final int required) throws IOException {
+        if (!this.channel.isOpen()) {
+            return false;
+        }
 
-    /**
-     * Discard content that has been read so far.
-     */
-    public void next() {
-        this.buffer.compact();
-        this.buffer.limit(this.buffer.position());
-        this.buffer.rewind();
+        if (this.buffer.capacity() < required) {
+            final int capacity = Math.max(this.buffer.capacity() * 2, required);
+            final ByteBuffer grown = ByteBuffer.allocate(capacity);
+            grown.put(this.buffer);
+            grown.flip();
+            this.buffer = grown;
+        } else if (this.buffer.limit() == this.buffer.capacity()) {
+            this.buffer.compact();
+            this.buffer.flip();
+        }
+
+        final int position = this.buffer.position();
+        final int count;
+        try {
+            this.buffer.position(this.buffer.limit());
+            this.buffer.limit(this.buffer.capacity());
+            count = this.channel.read(this.buffer);
+        } finally {
+            this.buffer.flip();
+            this.buffer.position(position);
+        }
+
+        if (count < 0) {
+            throw new EOFException("End of stream reached");
+        }
+        this.received += count;
+        return count > 0;
     }
 
 }
@@ -2,31 +2,59 @@ package de.lancom.systems.stomp.core.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 import de.lancom.systems.stomp.core.wire.StompEncoding;
 
 /**
  * Helper class for channel writing.
+ * Strings and numbers are encoded as UTF-8 directly into a reusable buffer without intermediate objects.
+ * Large blocks are not copied but queued as separate segments and written using gathering writes.
+ * Segments of the reusable buffer are views that are recycled once everything has been flushed, so only the
+ * wrapper of a large block is allocated per frame.
+ * Content the channel does not accept immediately stays queued until the next flush.
+ * The buffer grows for large writes and shrinks back to its initial size once it has been drained by several
+ * consecutive flushes that did not need more than the initial size.
  */
 public class ChannelWriter {
 
     private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final int GATHER_THRESHOLD = 8 * 1024;
+    private static final int SHRINK_FLUSHES = 16;
+    private static final int MAX_ONE_BYTE = 0x7F;
+    private static final int MAX_TWO_BYTES = 0x7FF;
+    private static final int LEAD_TWO_BYTES = 0xC0;
+    private static final int LEAD_THREE_BYTES = 0xE0;
+    private static final int LEAD_FOUR_BYTES = 0xF0;
+    private static final int CONTINUATION = 0x80;
+    private static final int CONTINUATION_MASK = 0x3F;
+    private static final int CONTINUATION_BITS = 6;
+    private static final int SECOND_CONTINUATION_BITS = 12;
+    private static final int THIRD_CONTINUATION_BITS = 18;
+    private static final int DECIMAL = 10;
+    private static final byte ESCAPE = '\\';
+    private static final byte REPLACEMENT = '?';
 
     private final WritableByteChannel channel;
-    private final Charset charset;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private final List<ByteBuffer> views = new ArrayList<>();
+    private int usedViews;
+    private ByteBuffer[] sources = new ByteBuffer[0];
     private ByteBuffer buffer;
+    private int mark;
+    private int smallFlushes;
 
     /**
      * Create a new writer.
      *
      * @param channel channel
-     * @param charset charset
      */
-    public ChannelWriter(final WritableByteChannel channel, final Charset charset) {
+    public ChannelWriter(final WritableByteChannel channel) {
         this.channel = channel;
-        this.charset = charset;
         this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
     }
 
@@ -37,7 +65,7 @@ public class ChannelWriter {
      * @throws IOException on io error
      */
     public void writeLine(final String line) throws IOException {
-        this.write(line.getBytes(charset));
+        this.writeString(line, false);
         this.write(StompEncoding.LINE_FEED);
     }
 
@@ -52,6 +80,68 @@ public class ChannelWriter {
         this.write(StompEncoding.TERMINATOR);
     }
 
+    /**
+     * Write string using UTF-8 and optionally apply stomp header escaping.
+     *
+     * @param value value
+     * @param escape escape header characters
+     * @throws IOException on io error
+     */
+    public void writeString(final String value, final boolean escape) throws IOException {
+        final int length = value.length();
+        for (int index = 0; index < length; index++) {
+            final char character = value.charAt(index);
+            if (escape && character == '\\') {
+                this.write(ESCAPE);
+                this.write(ESCAPE);
+            } else if (escape && character == '\n') {
+                this.write(ESCAPE);
+                this.write((byte) 'n');
+            } else if (escape && character == '\r') {
+                this.write(ESCAPE);
+                this.write((byte) 'r');
+            } else if (escape && character == ':') {
+                this.write(ESCAPE);
+                this.write((byte) 'c');
+            } else if (character <= MAX_ONE_BYTE) {
+                this.write((byte) character);
+            } else if (character <= MAX_TWO_BYTES) {
+                this.write((byte) (LEAD_TWO_BYTES | character >> CONTINUATION_BITS));
+                this.write((byte) (CONTINUATION | character & CONTINUATION_MASK));
+            } else if (Character.isHighSurrogate(character)
+                    && index + 1 < length
+                    && Character.isLowSurrogate(value.charAt(index + 1))) {
+                final int codePoint = Character.toCodePoint(character, value.charAt(++index));
+                this.write((byte) (LEAD_FOUR_BYTES | codePoint >> THIRD_CONTINUATION_BITS));
+                this.write((byte) (CONTINUATION | codePoint >> SECOND_CONTINUATION_BITS & CONTINUATION_MASK));
+                this.write((byte) (CONTINUATION | codePoint >> CONTINUATION_BITS & CONTINUATION_MASK));
+                this.write((byte) (CONTINUATION | codePoint & CONTINUATION_MASK));
+            } else if (Character.isSurrogate(character)) {
+                this.write(REPLACEMENT);
+            } else {
+                this.write((byte) (LEAD_THREE_BYTES | character >> SECOND_CONTINUATION_BITS));
+                this.write((byte) (CONTINUATION | character >> CONTINUATION_BITS & CONTINUATION_MASK));
+                this.write((byte) (CONTINUATION | character & CONTINUATION_MASK));
+            }
+        }
+    }
+
+    /**
+     * Write non negative number as decimal digits.
+     *
+     * @param value value
+     * @throws IOException on io error
+     */
+    public void writeNumber(final int value) throws IOException {
+        int divisor = 1;
+        while (value / divisor >= DECIMAL) {
+            divisor *= DECIMAL;
+        }
+        for (; divisor > 0; divisor /= DECIMAL) {
+            this.write((byte) ('0' + value / divisor % DECIMAL));
+        }
+    }
+
     /**
      * Write single byte.
      *
@@ -60,40 +150,174 @@ public class ChannelWriter {
      */
     public void write(final byte value) throws IOException {
         if (this.buffer.remaining() < 1) {
-            this.flush();
+            this.expand();
         }
         this.buffer.put(value);
     }
 
     /**
      * Write byte array.
+     * Large arrays are queued without copying and must not be modified until they have been flushed.
      *
      * @param array array
      * @throws IOException on io error
      */
     public void write(final byte[] array) throws IOException {
-        int position = 0;
-        while (position < array.length) {
-            final int step = Math.min(array.length - position, this.buffer.remaining());
-            this.buffer.put(array, position, step);
-            position += step;
-            if (this.buffer.remaining() == 0) {
-                this.flush();
+        if (array.length >= GATHER_THRESHOLD) {
+            this.seal();
+            this.segments.add(ByteBuffer.wrap(array));
+        } else {
+            if (this.buffer.remaining() < array.length) {
+                this.expand();
+            }
+            this.buffer.put(array);
+        }
+    }
+
+    /**
+     * Write as much queued content to the channel as it currently accepts.
+     * Content that could not be written is kept and written by the next flush.
+     *
+     * @return true if all queued content has been written
+     * @throws IOException on io error
+     */
+    public boolean flush() throws IOException {
+        if (!this.segments.isEmpty()) {
+            this.seal();
+            this.flushSegments();
+        }
+
+        if (this.segments.isEmpty() && this.buffer.position() > this.mark) {
+            final int end = this.buffer.position();
+            this.buffer.limit(end);
+            this.buffer.position(this.mark);
+            try {
+                this.channel.write(this.buffer);
+            } finally {
+                this.mark = this.buffer.position();
+                this.buffer.limit(this.buffer.capacity());
+                this.buffer.position(end);
             }
         }
+
+        final boolean flushed = !this.isPending();
+        if (flushed) {
+            this.drained();
+        }
+        return flushed;
+    }
+
+    /**
+     * Check if there is queued content that has not been written yet.
+     *
+     * @return pending
+     */
+    public boolean isPending() {
+        return !this.segments.isEmpty() || this.buffer.position() > this.mark;
+    }
+
+    /**
+     * Get amount of queued bytes that have not been written yet.
+     *
+     * @return pending bytes
+     */
+    public long getPendingBytes() {
+        long pending = this.buffer.position() - this.mark;
+        for (int index = 0; index < this.segments.size(); index++) {
+            pending += this.segments.get(index).remaining();
+        }
+        return pending;
     }
 
     /**
-     * Flush buffer to channel.
+     * Write queued segments until the channel does not accept more data and remove written segments.
      *
      * @throws IOException on io error
      */
-    public void flush() throws IOException {
-        if (this.buffer.position() > 0) {
-            this.buffer.flip();
-            this.channel.write(this.buffer);
+    private void flushSegments() throws IOException {
+        final int count = this.segments.size();
+        if (this.sources.length < count) {
+            this.sources = new ByteBuffer[count];
+        }
+        this.segments.toArray(this.sources);
+
+        try {
+            if (this.channel instanceof GatheringByteChannel) {
+                final GatheringByteChannel gathering = (GatheringByteChannel) this.channel;
+                long written;
+                do {
+                    written = gathering.write(this.sources, 0, count);
+                } while (written > 0 && this.sources[count - 1].hasRemaining());
+            } else {
+                boolean accepted = true;
+                for (int index = 0; accepted && index < count; index++) {
+                    while (accepted && this.sources[index].hasRemaining()) {
+                        accepted = this.channel.write(this.sources[index]) > 0;
+                    }
+                }
+            }
+        } finally {
+            int written = 0;
+            while (written < count && !this.sources[written].hasRemaining()) {
+                written++;
+            }
+            if (written == count) {
+                this.segments.clear();
+            } else {
+                this.segments.subList(0, written).clear();
+            }
+            for (int index = 0; index < count; index++) {
+                this.sources[index] = null;
+            }
+        }
+    }
+
+    /**
+     * Reset the drained buffer and shrink it back to its initial size if it has not been needed for a while.
+     */
+    private void drained() {
+        if (this.buffer.position() > BUFFER_SIZE) {
+            this.smallFlushes = 0;
+        } else if (this.buffer.capacity() > BUFFER_SIZE) {
+            this.smallFlushes++;
+        }
+
+        if (this.smallFlushes >= SHRINK_FLUSHES) {
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.views.clear();
+            this.smallFlushes = 0;
+        } else {
             this.buffer.clear();
         }
+        this.mark = 0;
+        this.usedViews = 0;
+    }
+
+    /**
+     * Queue buffer content written since the last segment as a new segment.
+     */
+    private void seal() {
+        if (this.buffer.position() > this.mark) {
+            if (this.usedViews == this.views.size()) {
+                this.views.add(this.buffer.duplicate());
+            }
+            final ByteBuffer segment = this.views.get(this.usedViews++);
+            segment.limit(this.buffer.position());
+            segment.position(this.mark);
+            this.segments.add(segment);
+            this.mark = this.buffer.position();
+        }
+    }
+
+    /**
+     * Queue current buffer content and continue with a larger buffer.
+     */
+    private void expand() {
+        this.seal();
+        this.buffer = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, MAX_BUFFER_SIZE));
+        this.mark = 0;
+        this.views.clear();
+        this.usedViews = 0;
     }
 
 }
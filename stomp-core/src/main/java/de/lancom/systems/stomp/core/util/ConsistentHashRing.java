@@ -0,0 +1,143 @@
+package de.lancom.systems.stomp.core.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring that maps keys to nodes.
+ * Each node is placed on the ring several times, a key belongs to the first node at or after its own position.
+ * Adding a node only moves the keys that now belong to the new node, all other keys keep their node.
+ * A position that is already taken by another node is never overwritten, the replica is placed at the next free
+ * position derived from its name instead.
+ * Lookups do not lock, the ring is replaced as a whole when nodes are added or removed.
+ *
+ * @param <T> node type
+ */
+public class ConsistentHashRing<T> {
+
+    private static final int DEFAULT_REPLICAS = 160;
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int MIX_SHIFT_LARGE = 16;
+    private static final int MIX_SHIFT_SMALL = 13;
+    private static final int MIX_FIRST = 0x85ebca6b;
+    private static final int MIX_SECOND = 0xc2b2ae35;
+
+    private volatile TreeMap<Integer, T> ring = new TreeMap<>();
+    private final List<T> nodes = new ArrayList<>();
+    private final Map<T, List<Integer>> positions = new HashMap<>();
+    private final int replicas;
+
+    /**
+     * Create a new empty ring using the default amount of replicas per node.
+     */
+    public ConsistentHashRing() {
+        this(DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Create a new empty ring.
+     *
+     * @param replicas amount of positions of each node on the ring
+     */
+    public ConsistentHashRing(final int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("At least one replica is required");
+        }
+        this.replicas = replicas;
+    }
+
+    /**
+     * Add a node to the ring.
+     * The positions of a node only depend on its string representation, unless they collide with positions of
+     * nodes that have been added before.
+     *
+     * @param node node
+     */
+    public synchronized void add(final T node) {
+        if (!this.nodes.contains(node)) {
+            this.nodes.add(node);
+            final TreeMap<Integer, T> updated = new TreeMap<>(this.ring);
+            final List<Integer> taken = new ArrayList<>(this.replicas);
+            for (int replica = 0; replica < this.replicas; replica++) {
+                int position = hash(node + "#" + replica);
+                for (int attempt = 1; updated.containsKey(position); attempt++) {
+                    position = hash(node + "#" + replica + "#" + attempt);
+                }
+                updated.put(position, node);
+                taken.add(position);
+            }
+            this.positions.put(node, taken);
+            this.ring = updated;
+        }
+    }
+
+    /**
+     * Remove a node from the ring.
+     * Only the positions taken by the node itself are freed.
+     *
+     * @param node node
+     */
+    public synchronized void remove(final T node) {
+        if (this.nodes.remove(node)) {
+            final TreeMap<Integer, T> updated = new TreeMap<>(this.ring);
+            for (final Integer position : this.positions.remove(node)) {
+                updated.remove(position, node);
+            }
+            this.ring = updated;
+        }
+    }
+
+    /**
+     * Get nodes of the ring.
+     *
+     * @return nodes
+     */
+    public synchronized List<T> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(this.nodes));
+    }
+
+    /**
+     * Get the node the given key belongs to.
+     *
+     * @param key key
+     * @return node or null if the ring is empty
+     */
+    public T get(final String key) {
+        final TreeMap<Integer, T> current = this.ring;
+        if (current.isEmpty()) {
+            return null;
+        } else {
+            final Map.Entry<Integer, T> entry = current.ceilingEntry(hash(key));
+            if (entry != null) {
+                return entry.getValue();
+            } else {
+                return current.firstEntry().getValue();
+            }
+        }
+    }
+
+    /**
+     * Hash the given string using FNV-1a followed by a final avalanche mix.
+     *
+     * @param value value
+     * @return hash
+     */
+    private static int hash(final String value) {
+        int hash = FNV_OFFSET;
+        for (int index = 0; index < value.length(); index++) {
+            hash ^= value.charAt(index);
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> MIX_SHIFT_LARGE;
+        hash *= MIX_FIRST;
+        hash ^= hash >>> MIX_SHIFT_SMALL;
+        hash *= MIX_SECOND;
+        hash ^= hash >>> MIX_SHIFT_LARGE;
+        return hash;
+    }
+}
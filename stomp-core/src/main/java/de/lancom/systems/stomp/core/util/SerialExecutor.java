@@ -0,0 +1,93 @@
+package de.lancom.systems.stomp.core.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Executor that runs its tasks one after another in submission order on a shared delegate executor.
+ * Many serial executors can share a small worker pool, at most one worker is used by each serial executor at a time.
+ * Tasks are rejected while the given amount of tasks is waiting.
+ */
+@Slf4j
+public class SerialExecutor implements Executor {
+
+    private static final int BATCH_SIZE = 64;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor delegate;
+    private final int capacity;
+
+    /**
+     * Create a new serial executor.
+     *
+     * @param delegate executor used to run the tasks
+     * @param capacity maximum amount of waiting tasks
+     */
+    public SerialExecutor(final Executor delegate, final int capacity) {
+        this.delegate = delegate;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (this.size.incrementAndGet() > this.capacity) {
+            this.size.decrementAndGet();
+            throw new RejectedExecutionException("More than " + this.capacity + " tasks are waiting");
+        }
+        this.tasks.add(task);
+        this.schedule();
+    }
+
+    /**
+     * Get amount of tasks that have not been run yet.
+     *
+     * @return pending tasks
+     */
+    public int getPendingTasks() {
+        return this.size.get();
+    }
+
+    /**
+     * Submit a drain run to the delegate unless one is already scheduled or running.
+     */
+    private void schedule() {
+        if (!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+            this.delegate.execute(this::drain);
+        }
+    }
+
+    /**
+     * Run a limited amount of queued tasks and give the worker back to other executors afterwards.
+     */
+    private void drain() {
+        try {
+            Runnable task = this.tasks.poll();
+            for (int count = 0; task != null; count++) {
+                this.size.decrementAndGet();
+                try {
+                    task.run();
+                } catch (final Exception ex) {
+                    if (log.isErrorEnabled()) {
+                        log.error("Serial task failed", ex);
+                    }
+                }
+                if (count < BATCH_SIZE) {
+                    task = this.tasks.poll();
+                } else {
+                    task = null;
+                }
+            }
+        } finally {
+            this.scheduled.set(false);
+            this.schedule();
+        }
+    }
+}
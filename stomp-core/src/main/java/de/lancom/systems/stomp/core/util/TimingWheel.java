@@ -0,0 +1,317 @@
+package de.lancom.systems.stomp.core.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import lombok.Getter;
+
+/**
+ * Hierarchical timing wheel for deadlines based on {@link System#nanoTime()}.
+ * Entries can be scheduled from any thread, expiration is done by a single thread calling {@link #advance(long)}.
+ * Scheduling, cancellation and expiration of an entry take constant time, cancelled entries are unlinked from their
+ * slot by the expiring thread.
+ */
+public class TimingWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << WHEEL_BITS * LEVELS) - 1;
+
+    private final Entry[][] slots = new Entry[LEVELS][WHEEL_SIZE];
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start;
+    private final long tick;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a new timing wheel with the given tick duration.
+     *
+     * @param tick tick duration
+     * @param unit tick unit
+     */
+    public TimingWheel(final long tick, final TimeUnit unit) {
+        this.tick = unit.toNanos(tick);
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Check if no entries are waiting for expiration.
+     *
+     * @return empty
+     */
+    public boolean isEmpty() {
+        return this.size == 0 && this.scheduled.isEmpty();
+    }
+
+    /**
+     * Get the time until the wheel has to be advanced next.
+     * This is the deadline of the earliest occupied slot of the lowest level or the time at which the earliest
+     * occupied slot of a higher level has to be cascaded, whatever comes first.
+     *
+     * @param now current time based on {@link System#nanoTime()}
+     * @return delay in nanoseconds, {@link Long#MAX_VALUE} if no entries are waiting
+     */
+    public long getDelay(final long now) {
+        if (!this.scheduled.isEmpty()) {
+            return 0;
+        }
+        if (this.size == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long nextTick = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = WHEEL_BITS * level;
+            final long base = this.currentTick >>> shift;
+            for (int offset = 1; offset <= WHEEL_SIZE; offset++) {
+                if (this.slots[level][(int) (base + offset & WHEEL_MASK)] != null) {
+                    nextTick = Math.min(nextTick, base + offset << shift);
+                    break;
+                }
+            }
+        }
+        return Math.max(0, this.start + nextTick * this.tick - now);
+    }
+
+    /**
+     * Schedule a task for the given deadline.
+     * The task returns whether it actually expired something, which is reported by {@link #advance(long)}.
+     *
+     * @param deadline deadline based on {@link System#nanoTime()}
+     * @param task task
+     * @return entry
+     */
+    public Entry schedule(final long deadline, final BooleanSupplier task) {
+        final Entry entry = new Entry(this, deadline, task);
+        this.scheduled.add(entry);
+        return entry;
+    }
+
+    /**
+     * Advance the wheel to the given time and run all tasks whose deadline has passed.
+     *
+     * @param now current time based on {@link System#nanoTime()}
+     * @return amount of tasks that reported an expiration
+     */
+    public int advance(final long now) {
+        final long targetTick = (now - this.start) / this.tick;
+        int expired = 0;
+
+        Entry entry = this.scheduled.poll();
+        while (entry != null) {
+            expired += this.insert(entry);
+            entry = this.scheduled.poll();
+        }
+
+        Entry cancelledEntry = this.cancelled.poll();
+        while (cancelledEntry != null) {
+            this.unlink(cancelledEntry);
+            cancelledEntry = this.cancelled.poll();
+        }
+
+        if (this.size == 0) {
+            this.currentTick = Math.max(this.currentTick, targetTick);
+        }
+
+        while (this.currentTick < targetTick) {
+            this.currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((this.currentTick & (1L << WHEEL_BITS * level) - 1) == 0) {
+                    expired += this.cascade(level);
+                }
+            }
+            expired += this.expire(this.take(0, (int) (this.currentTick & WHEEL_MASK)));
+        }
+
+        return expired;
+    }
+
+    /**
+     * Insert entry into the matching wheel level or expire it if its deadline has already passed.
+     *
+     * @param entry entry
+     * @return amount of expirations
+     */
+    private int insert(final Entry entry) {
+        if (entry.isCancelled()) {
+            return 0;
+        }
+
+        final long deadlineTick = Math.max(0, (entry.getDeadline() - this.start + this.tick - 1) / this.tick);
+        final long delta = deadlineTick - this.currentTick;
+        if (delta <= 0) {
+            return this.run(entry);
+        }
+
+        // deadlines beyond the range of the wheel are parked at the end of the top level, they are inserted again
+        // with their remaining delta once their slot is cascaded
+        final long range = Math.min(delta, MAX_DELTA);
+        int level = 0;
+        while (range >= 1L << WHEEL_BITS * (level + 1)) {
+            level++;
+        }
+        final long targetTick = this.currentTick + range;
+        final int slot = (int) (targetTick >>> WHEEL_BITS * level & WHEEL_MASK);
+
+        final Entry first = this.slots[level][slot];
+        if (first != null) {
+            first.prev = entry;
+        }
+        entry.next = first;
+        entry.prev = null;
+        entry.level = level;
+        entry.slot = slot;
+        this.slots[level][slot] = entry;
+        this.size++;
+        return 0;
+    }
+
+    /**
+     * Remove a cancelled entry from its slot unless it has already been taken from the wheel.
+     *
+     * @param entry entry
+     */
+    private void unlink(final Entry entry) {
+        if (entry.level < 0) {
+            return;
+        }
+        if (entry.prev == null) {
+            this.slots[entry.level][entry.slot] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.level = -1;
+        this.size--;
+    }
+
+    /**
+     * Move the entries of the current slot of the given level to lower levels.
+     *
+     * @param level level
+     * @return amount of expirations
+     */
+    private int cascade(final int level) {
+        final int slot = (int) (this.currentTick >>> WHEEL_BITS * level & WHEEL_MASK);
+        int expired = 0;
+        Entry entry = this.take(level, slot);
+        while (entry != null) {
+            final Entry next = entry.next;
+            entry.next = null;
+            expired += this.insert(entry);
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * Run all entries of the given list.
+     *
+     * @param first first entry
+     * @return amount of expirations
+     */
+    private int expire(final Entry first) {
+        int expired = 0;
+        Entry entry = first;
+        while (entry != null) {
+            final Entry next = entry.next;
+            entry.next = null;
+            expired += this.run(entry);
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * Remove and return all entries of the given slot.
+     *
+     * @param level level
+     * @param slot slot
+     * @return first entry or null
+     */
+    private Entry take(final int level, final int slot) {
+        final Entry first = this.slots[level][slot];
+        this.slots[level][slot] = null;
+        for (Entry entry = first; entry != null; entry = entry.next) {
+            entry.prev = null;
+            entry.level = -1;
+            this.size--;
+        }
+        return first;
+    }
+
+    /**
+     * Run task of entry unless it has been cancelled.
+     *
+     * @param entry entry
+     * @return 1 if the task reported an expiration, 0 otherwise
+     */
+    private int run(final Entry entry) {
+        final BooleanSupplier task = entry.task;
+        if (!entry.isCancelled() && task != null && task.getAsBoolean()) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Scheduled timing wheel entry.
+     */
+    public static final class Entry {
+        private final TimingWheel wheel;
+        @Getter
+        private final long deadline;
+        private volatile BooleanSupplier task;
+        private volatile boolean cancelled;
+        private Entry prev;
+        private Entry next;
+        private int level = -1;
+        private int slot;
+
+        /**
+         * Create a new entry.
+         *
+         * @param wheel wheel
+         * @param deadline deadline
+         * @param task task
+         */
+        private Entry(final TimingWheel wheel, final long deadline, final BooleanSupplier task) {
+            this.wheel = wheel;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Cancel entry, the task will not be run.
+         * The task is released right away and the entry is removed from its slot the next time the wheel is
+         * advanced, so neither the entry nor objects the task refers to have to wait for the deadline to be collected.
+         */
+        public void cancel() {
+            if (!this.cancelled) {
+                this.cancelled = true;
+                this.task = null;
+                this.wheel.cancelled.add(this);
+            }
+        }
+
+        /**
+         * Check if entry has been cancelled.
+         *
+         * @return cancelled
+         */
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+    }
+}
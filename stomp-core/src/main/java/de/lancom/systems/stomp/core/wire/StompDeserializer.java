@@ -19,6 +19,9 @@ public class StompDeserializer {
     private final StompContext context;
     private final ReadableByteChannel channel;
     private final ChannelReader reader;
+    private Phase phase = Phase.ACTION;
+    private StompFrame frame;
+    private long lastRead = System.nanoTime();
 
     /**
      * Default constructor.
@@ -34,72 +37,118 @@ public class StompDeserializer {
 
     /**
      * Read frame from underlying input stream.
+     * Partially received frames are kept and completed by subsequent calls.
+     * The time of the last read is only updated if bytes have been received from the channel.
      *
      * @return frame or null if none is available
      * @throws IOException if an I/O error occurs
      */
     public synchronized StompFrame readFrame() throws IOException {
-        StompFrame frame;
-
-        // read action
-        while (true) {
-            final String line = this.reader.readLine();
-            if (line == null) {
-                frame = null;
-                break;
-            } else if (isBlank(line)) {
-                continue;
-            } else {
-                frame = context.createFrame(line);
-                break;
+        final long received = this.reader.getReceived();
+        try {
+            return this.read();
+        } finally {
+            if (this.reader.getReceived() != received) {
+                this.lastRead = System.nanoTime();
             }
         }
+    }
 
-        // read headers
-        if (frame != null) {
-            while (true) {
-                final String line = this.reader.readLine();
-
-                if (isBlank(line)) {
+    /**
+     * Read frame from the buffered and received data.
+     *
+     * @return frame or null if none is available
+     * @throws IOException if an I/O error occurs
+     */
+    private StompFrame read() throws IOException {
+        while (true) {
+            switch (this.phase) {
+                case ACTION:
+                    final String action = this.reader.readLine();
+                    if (action == null) {
+                        return null;
+                    } else if (!isBlank(action)) {
+                        this.frame = context.createFrame(action);
+                        this.phase = Phase.HEADERS;
+                    }
                     break;
-                } else {
-                    final String[] parts = line.split(":", 2);
-                    if (parts.length == 2) {
-                        final String headerName = parts[0];
-                        final String headerValue;
-                        if (Objects.equals(frame.getAction(), StompAction.CONNECT.value())) {
-                            headerValue = parts[1];
-                        } else {
-                            headerValue = StompEncoding.decodeHeaderValue(parts[1]);
-                        }
-
-                        frame.getHeaders().put(headerName, headerValue);
+                case HEADERS:
+                    final String line = this.reader.readLine();
+                    if (line == null) {
+                        return null;
+                    } else if (isBlank(line)) {
+                        this.phase = Phase.BODY;
+                    } else {
+                        this.readHeader(line);
+                    }
+                    break;
+                case BODY:
+                    final byte[] body = this.reader.readBlock(this.frame.getContentLength());
+                    if (body == null) {
+                        return null;
                     } else {
-                        throw new RuntimeException(String.format("Error reading frame header line '%s'", line));
+                        final StompFrame result = this.frame;
+                        if (body.length > 0) {
+                            result.setBody(body);
+                        }
+                        this.frame = null;
+                        this.phase = Phase.ACTION;
+                        return result;
                     }
-                }
+                default:
+                    throw new IllegalStateException("Unknown phase " + this.phase);
             }
         }
+    }
 
-        // read body
-        if (frame != null) {
-            final byte[] body = this.reader.readBlock(frame.getContentLength());
+    /**
+     * Get time bytes have been received from the channel the last time.
+     * Heart-beats are skipped while reading but update this time as well.
+     *
+     * @return time based on {@link System#nanoTime()}
+     */
+    public synchronized long getLastRead() {
+        return this.lastRead;
+    }
 
-            if (body != null) {
-                if (body.length > 0) {
-                    frame.setBody(body);
-                }
-                this.reader.next();
+    /**
+     * Read header line into the current frame.
+     *
+     * @param line header line
+     */
+    private void readHeader(final String line) {
+        final String[] parts = line.split(":", 2);
+        if (parts.length == 2) {
+            final String headerName = parts[0];
+            final String headerValue;
+            if (Objects.equals(frame.getAction(), StompAction.CONNECT.value())) {
+                headerValue = parts[1];
             } else {
-                frame = null;
+                headerValue = StompEncoding.decodeHeaderValue(parts[1]);
             }
-        }
 
-        if (frame == null) {
-            this.reader.rewind();
+            frame.getHeaders().put(headerName, headerValue);
+        } else {
+            throw new RuntimeException(String.format("Error reading frame header line '%s'", line));
         }
+    }
 
-        return frame;
+    /**
+     * Frame parsing phase.
+     */
+    private enum Phase {
+        /**
+         * Waiting for action line.
+         */
+        ACTION,
+        /**
+         * Reading header lines.
+         */
+        HEADERS,
+        /**
+         * Reading body up to the terminator.
+         */
+        BODY
     }
 
 }
@@ -65,6 +65,10 @@ public enum StompHeader implements EnumValue<String> {
      * Ack header.
      */
     ACK("ack"),
+    /**
+     * Transaction header.
+     */
+    TRANSACTION("transaction"),
     /**
      * Selector header.
      */
@@ -0,0 +1,83 @@
+package de.lancom.systems.stomp.core.wire;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Value of the heart-beat header.
+ * The first value is the smallest interval in milliseconds the sender can send heart-beats with,
+ * the second value the interval it would like to receive heart-beats with. Zero disables the direction.
+ */
+@Getter
+@EqualsAndHashCode
+public final class StompHeartBeat {
+
+    /**
+     * Heart-beat value that disables heart-beating in both directions.
+     */
+    public static final StompHeartBeat NONE = new StompHeartBeat(0, 0);
+
+    private final long outgoing;
+    private final long incoming;
+
+    /**
+     * Create a new heart-beat value.
+     *
+     * @param outgoing outgoing interval in milliseconds
+     * @param incoming incoming interval in milliseconds
+     */
+    public StompHeartBeat(final long outgoing, final long incoming) {
+        if (outgoing < 0 || incoming < 0) {
+            throw new IllegalArgumentException("Heart-beat intervals must not be negative");
+        }
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+    }
+
+    /**
+     * Parse the given heart-beat header value.
+     *
+     * @param value header value
+     * @return heart-beat or {@link #NONE} if the value is missing
+     */
+    public static StompHeartBeat parse(final String value) {
+        if (value == null) {
+            return NONE;
+        } else {
+            final String[] parts = value.trim().split("\\s*,\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid heart-beat '%s'", value));
+            }
+            return new StompHeartBeat(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        }
+    }
+
+    /**
+     * Negotiate the interval for one direction.
+     *
+     * @param sender interval the sending side can send with
+     * @param receiver interval the receiving side would like to receive with
+     * @return negotiated interval in milliseconds or zero if heart-beating is disabled for the direction
+     */
+    public static long negotiate(final long sender, final long receiver) {
+        if (sender == 0 || receiver == 0) {
+            return 0;
+        } else {
+            return Math.max(sender, receiver);
+        }
+    }
+
+    /**
+     * Get header value.
+     *
+     * @return header value
+     */
+    public String value() {
+        return this.outgoing + "," + this.incoming;
+    }
+
+    @Override
+    public String toString() {
+        return this.value();
+    }
+}
@@ -2,7 +2,6 @@ package de.lancom.systems.stomp.core.wire;
 
 import java.io.IOException;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Objects;
 
@@ -16,6 +15,7 @@ public class StompSerializer {
     private final StompContext context;
     private final WritableByteChannel channel;
     private final ChannelWriter writer;
+    private long lastWrite = System.nanoTime();
 
     /**
      * Default cosntructor.
@@ -26,41 +26,99 @@ public class StompSerializer {
     public StompSerializer(final StompContext context, final WritableByteChannel channel) {
         this.context = context;
         this.channel = channel;
-        this.writer = new ChannelWriter(channel, StandardCharsets.UTF_8);
+        this.writer = new ChannelWriter(channel);
     }
 
     /**
-     * Write the given frame to the underlying output stream.
+     * Queue the given frame for the underlying channel.
+     * Headers are escaped and encoded directly into the writer buffer, the frame itself is not modified.
+     * The frame is written to the channel by {@link #flush()}.
      *
      * @param frame frame
      * @throws IOException if an I/O error occurs
      */
     public synchronized void writeFrame(final StompFrame frame) throws IOException {
         if (frame != null) {
-            if (frame.getBody() != null) {
-                frame.setContentLength(frame.getBody().length);
-            }
+            final byte[] body = frame.getBody();
+            final boolean escape = !Objects.equals(frame.getAction(), StompAction.CONNECT.value());
 
             writer.writeLine(frame.getAction());
             for (final Map.Entry<String, String> header : frame.getHeaders().entrySet()) {
-
                 final String headerKey = header.getKey();
-                final String headerValue;
-                if (Objects.equals(frame.getAction(), StompAction.CONNECT.value())) {
-                    headerValue = header.getValue();
-                } else {
-                    headerValue = StompEncoding.encodeHeaderValue(header.getValue());
-                }
+                final String headerValue = header.getValue();
 
-                writer.writeLine(String.format("%s:%s", headerKey, headerValue));
+                boolean write = true;
+                write = write && headerValue != null;
+                write = write && !(body != null && StompHeader.CONTENT_LENGTH.value().equals(headerKey));
+
+                if (write) {
+                    writer.writeString(headerKey, escape);
+                    writer.write(StompEncoding.HEADER_SEPARATOR);
+                    writer.writeString(headerValue, escape);
+                    writer.write(StompEncoding.LINE_FEED);
+                }
             }
-            writer.writeLine("");
-            if (frame.getBody() != null) {
-                writer.write(frame.getBody());
+            if (body != null) {
+                writer.writeString(StompHeader.CONTENT_LENGTH.value(), false);
+                writer.write(StompEncoding.HEADER_SEPARATOR);
+                writer.writeNumber(body.length);
+                writer.write(StompEncoding.LINE_FEED);
+            }
+            writer.write(StompEncoding.LINE_FEED);
+            if (body != null) {
+                writer.write(body);
             }
             writer.write(StompEncoding.TERMINATOR);
-            writer.flush();
+            this.lastWrite = System.nanoTime();
         }
     }
 
+    /**
+     * Queue a heart-beat for the underlying channel.
+     * A heart-beat is a single end of line between frames.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void writeHeartBeat() throws IOException {
+        writer.write(StompEncoding.LINE_FEED);
+        this.lastWrite = System.nanoTime();
+    }
+
+    /**
+     * Get time of the last queued frame or heart-beat.
+     *
+     * @return time based on {@link System#nanoTime()}
+     */
+    public synchronized long getLastWrite() {
+        return this.lastWrite;
+    }
+
+    /**
+     * Write queued frames to the underlying channel as far as it accepts data without blocking.
+     *
+     * @return true if all queued frames have been written
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized boolean flush() throws IOException {
+        return writer.flush();
+    }
+
+    /**
+     * Check if queued frames are waiting to be written.
+     *
+     * @return pending
+     */
+    public synchronized boolean isPending() {
+        return writer.isPending();
+    }
+
+    /**
+     * Get amount of queued bytes that are waiting to be written.
+     *
+     * @return pending bytes
+     */
+    public synchronized long getPendingBytes() {
+        return writer.getPendingBytes();
+    }
+
 }
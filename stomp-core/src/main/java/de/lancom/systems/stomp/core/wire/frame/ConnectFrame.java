@@ -9,6 +9,7 @@ import de.lancom.systems.stomp.core.util.EnumUtil;
 import de.lancom.systems.stomp.core.wire.StompAction;
 import de.lancom.systems.stomp.core.wire.StompFrame;
 import de.lancom.systems.stomp.core.wire.StompHeader;
+import de.lancom.systems.stomp.core.wire.StompHeartBeat;
 import de.lancom.systems.stomp.core.client.StompUrl;
 import de.lancom.systems.stomp.core.wire.StompVersion;
 
@@ -154,4 +155,26 @@ public class ConnectFrame extends StompFrame {
         this.setAcceptVersionList(values);
     }
 
+    /**
+     * Get heart-beat.
+     *
+     * @return heart-beat
+     */
+    public StompHeartBeat getHeartBeat() {
+        return StompHeartBeat.parse(this.getHeaders().get(StompHeader.HEART_BEAT.value()));
+    }
+
+    /**
+     * Set heart-beat.
+     *
+     * @param heartBeat heart-beat
+     */
+    public void setHeartBeat(final StompHeartBeat heartBeat) {
+        if (heartBeat != null) {
+            this.getHeaders().put(StompHeader.HEART_BEAT.value(), heartBeat.value());
+        } else {
+            this.getHeaders().remove(StompHeader.HEART_BEAT.value());
+        }
+    }
+
 }
@@ -2,6 +2,7 @@ package de.lancom.systems.stomp.core.wire.frame;
 
 import de.lancom.systems.stomp.core.wire.StompAction;
 import de.lancom.systems.stomp.core.wire.StompHeader;
+import de.lancom.systems.stomp.core.wire.StompHeartBeat;
 
 /**
  * Connected frame.
@@ -33,4 +34,26 @@ public class ConnectedFrame extends ServerFrame {
         this.getHeaders().put(StompHeader.VERSION.value(), version);
     }
 
+    /**
+     * Get heart-beat.
+     *
+     * @return heart-beat
+     */
+    public StompHeartBeat getHeartBeat() {
+        return StompHeartBeat.parse(this.getHeaders().get(StompHeader.HEART_BEAT.value()));
+    }
+
+    /**
+     * Set heart-beat.
+     *
+     * @param heartBeat heart-beat
+     */
+    public void setHeartBeat(final StompHeartBeat heartBeat) {
+        if (heartBeat != null) {
+            this.getHeaders().put(StompHeader.HEART_BEAT.value(), heartBeat.value());
+        } else {
+            this.getHeaders().remove(StompHeader.HEART_BEAT.value());
+        }
+    }
+
 }
@@ -0,0 +1,113 @@
+package de.lancom.systems.stomp.core.wire;
+
+import static org.hamcrest.CoreMatchers.anyOf;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.lancom.systems.stomp.core.util.ConsistentHashRing;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private static final int NODES = 4;
+    private static final int KEYS = 100000;
+    private static final double MAX_DEVIATION = 0.2;
+    private static final double MAX_MOVED = 0.3;
+
+    @Test
+    public void distributeKeysEvenly() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (int node = 0; node < NODES; node++) {
+            ring.add("stomp://broker" + node + ":61613");
+        }
+
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int key = 0; key < KEYS; key++) {
+            counts.merge(ring.get("/queue/" + key), 1, Integer::sum);
+        }
+
+        assertThat(counts.size(), is(NODES));
+        final double expected = (double) KEYS / NODES;
+        for (final int count : counts.values()) {
+            assertTrue(Math.abs(count - expected) / expected < MAX_DEVIATION);
+        }
+    }
+
+    @Test
+    public void moveKeysOnlyToAddedNode() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (int node = 0; node < NODES; node++) {
+            ring.add("stomp://broker" + node + ":61613");
+        }
+
+        final Map<String, String> before = new HashMap<>();
+        for (int key = 0; key < KEYS; key++) {
+            before.put("/queue/" + key, ring.get("/queue/" + key));
+        }
+
+        final String added = "stomp://broker" + NODES + ":61613";
+        ring.add(added);
+
+        int moved = 0;
+        for (final Map.Entry<String, String> entry : before.entrySet()) {
+            final String node = ring.get(entry.getKey());
+            assertThat(node, anyOf(equalTo(entry.getValue()), equalTo(added)));
+            if (!node.equals(entry.getValue())) {
+                moved++;
+            }
+        }
+        assertTrue(moved > 0);
+        assertTrue(moved < KEYS * MAX_MOVED);
+
+        ring.remove(added);
+        for (final Map.Entry<String, String> entry : before.entrySet()) {
+            assertThat(ring.get(entry.getKey()), is(equalTo(entry.getValue())));
+        }
+    }
+
+    @Test
+    public void keepPositionsOfCollidingNodes() {
+        final ConsistentHashRing<Object> ring = new ConsistentHashRing<>();
+        final Object first = new NamedNode("stomp://broker:61613");
+        final Object second = new NamedNode("stomp://broker:61613");
+        ring.add(first);
+        ring.add(second);
+
+        final Map<Object, Integer> counts = new HashMap<>();
+        for (int key = 0; key < KEYS; key++) {
+            counts.merge(ring.get("/queue/" + key), 1, Integer::sum);
+        }
+        assertThat(counts.size(), is(2));
+
+        ring.remove(first);
+        for (int key = 0; key < KEYS; key++) {
+            assertThat(ring.get("/queue/" + key), is(equalTo(second)));
+        }
+    }
+
+    /**
+     * Node that is only equal to itself but shares its string representation with other nodes.
+     */
+    private static final class NamedNode {
+        private final String name;
+
+        /**
+         * Create a new node.
+         *
+         * @param name name
+         */
+        private NamedNode(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+}
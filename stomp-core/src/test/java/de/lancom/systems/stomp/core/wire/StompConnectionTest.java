@@ -7,17 +7,34 @@ import static java.util.UUID.randomUUID;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.lancom.systems.defer.Promise;
+import de.lancom.systems.stomp.core.StompContext;
+import de.lancom.systems.stomp.core.StompEventLoop;
+import de.lancom.systems.stomp.core.connection.StompBatchPolicy;
 import de.lancom.systems.stomp.core.connection.StompConnection;
 import de.lancom.systems.stomp.core.connection.StompFrameContext;
 import de.lancom.systems.stomp.core.connection.StompFrameContextInterceptors;
+import de.lancom.systems.stomp.core.connection.StompFrameTransmitJob;
+import de.lancom.systems.stomp.core.connection.StompOverflowPolicy;
 import de.lancom.systems.stomp.core.connection.StompSubscription;
+import de.lancom.systems.stomp.core.wire.frame.AckFrame;
+import de.lancom.systems.stomp.core.wire.frame.SendFrame;
 import de.lancom.systems.stomp.test.AsyncHolder;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -26,6 +43,25 @@ import org.junit.Test;
 
 public class StompConnectionTest {
 
+    private static final int ORDERED_MESSAGES = 500;
+    private static final int PARTITIONS = 4;
+    private static final int QUEUE_LIMIT = 10;
+    private static final int RECEIPT_INTERVAL = 10;
+    private static final int BATCH_SIZE = 50;
+    private static final long BATCH_LINGER = 100;
+    private static final String GROUP_HEADER = "group";
+    private static final int LARGE_SUBSCRIPTIONS = 100000;
+    private static final long CONNECT_TIMEOUT = 500;
+    private static final int PIPELINED_SUBSCRIPTIONS = 200;
+    private static final long HEART_BEAT = 200;
+    private static final int HEART_BEAT_INTERVALS = 5;
+    private static final int HIGH_WATER_MARK = 20;
+    private static final int LOW_WATER_MARK = 5;
+    private static final int BACKLOG_MESSAGES = 200;
+    private static final long ACK_WAIT = 200;
+    private static final int CONFIRM_SECONDS = 2;
+    private static final int PRODUCERS = 8;
+
     private StompConnection connection  = new StompConnection(CONTEXT, "localhost", BROKER.getPort());
 
     @BeforeClass
@@ -219,6 +255,568 @@ public class StompConnectionTest {
 
     }
 
+    @Test
+    public void multipleEventLoops() throws Exception {
+        final StompContext context = new StompContext(4);
+        context.start();
+
+        try {
+            final List<StompConnection> connections = new ArrayList<>();
+            for (int index = 0; index < 8; index++) {
+                connections.add(new StompConnection(context, "localhost", BROKER.getPort()));
+            }
+
+            for (final StompEventLoop eventLoop : context.getEventLoops()) {
+                assertThat(eventLoop.getConnections().size(), is(2));
+            }
+
+            for (final StompConnection current : connections) {
+                final String destination = String.format("/topic/%s", UUID.randomUUID());
+                assertTrue(
+                        "Send failed",
+                        current.send(destination, "Test").await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                );
+            }
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void dispatchInOrderOnBoundedPool() throws Exception {
+        final StompContext context = new StompContext();
+        context.setDispatchThreads(2);
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            final List<AsyncHolder<Integer>> holders = new ArrayList<>();
+            final AsyncHolder<String> threads = AsyncHolder.create();
+
+            for (int index = 0; index < 4; index++) {
+                final String destination = String.format("/queue/%s", UUID.randomUUID());
+                final AsyncHolder<Integer> holder = AsyncHolder.create();
+                holders.add(holder);
+
+                final StompSubscription subscription = current.createSubscription(destination, c -> {
+                    threads.set(Thread.currentThread().getName());
+                    holder.set(Integer.valueOf(c.getFrame().getBodyAsString()));
+                    return true;
+                });
+                assertTrue(
+                        "Subscription failed",
+                        subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                );
+
+                Promise<?> promise = null;
+                for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                    promise = current.send(destination, String.valueOf(message));
+                }
+                assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+
+            for (final AsyncHolder<Integer> holder : holders) {
+                assertTrue("Messages missing", holder.expect(ORDERED_MESSAGES, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                    assertThat(holder.get(message), is(equalTo(message)));
+                }
+            }
+
+            for (int index = 0; index < threads.getCount(); index++) {
+                assertTrue(threads.get(index).startsWith("Stomp Dispatch"));
+            }
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void dispatchPartitionedInOrderPerKey() throws Exception {
+        final String destination = String.format("/queue/%s", UUID.randomUUID());
+        final List<AsyncHolder<Integer>> holders = new ArrayList<>();
+        for (int group = 0; group < PARTITIONS; group++) {
+            holders.add(AsyncHolder.create());
+        }
+
+        final StompSubscription subscription = connection.createSubscription(
+                destination,
+                c -> c.getFrame().getHeader(GROUP_HEADER),
+                PARTITIONS,
+                c -> {
+                    final int group = Integer.parseInt(c.getFrame().getHeader(GROUP_HEADER));
+                    holders.get(group).set(Integer.valueOf(c.getFrame().getBodyAsString()));
+                    return true;
+                }
+        );
+
+        try {
+            assertThat(subscription.getParallelism(), is(PARTITIONS));
+            assertTrue(
+                    "Subscription failed",
+                    subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            Promise<?> promise = null;
+            for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                final SendFrame frame = new SendFrame(destination, String.valueOf(message));
+                frame.setHeader(GROUP_HEADER, String.valueOf(message % PARTITIONS));
+                promise = connection.transmitFrame(frame);
+            }
+            assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            for (int group = 0; group < PARTITIONS; group++) {
+                final AsyncHolder<Integer> holder = holders.get(group);
+                final int expected = ORDERED_MESSAGES / PARTITIONS;
+                assertTrue("Messages missing", holder.expect(expected, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                for (int index = 0; index < expected; index++) {
+                    assertThat(holder.get(index), is(equalTo(index * PARTITIONS + group)));
+                }
+            }
+        } finally {
+            subscription.unsubscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requirePartitionKeyForSeveralLanes() throws Exception {
+        connection.createSubscription(UUID.randomUUID().toString(), "/queue/test", null, PARTITIONS, c -> true);
+    }
+
+    @Test
+    public void dispatchOnFirstLaneIfPartitionKeyFails() throws Exception {
+        final String destination = String.format("/queue/%s", UUID.randomUUID());
+        final AsyncHolder<Integer> holder = AsyncHolder.create();
+
+        final StompSubscription subscription = connection.createSubscription(
+                destination,
+                c -> {
+                    throw new IllegalStateException("No key");
+                },
+                PARTITIONS,
+                c -> {
+                    holder.set(Integer.valueOf(c.getFrame().getBodyAsString()));
+                    return true;
+                }
+        );
+
+        try {
+            assertTrue(
+                    "Subscription failed",
+                    subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            Promise<?> promise = null;
+            for (int message = 0; message < PARTITIONS; message++) {
+                promise = connection.send(destination, String.valueOf(message));
+            }
+            assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            assertTrue("Messages missing", holder.expect(PARTITIONS, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            for (int index = 0; index < PARTITIONS; index++) {
+                assertThat(holder.get(index), is(equalTo(index)));
+            }
+            assertThat(connection.getState(), is(StompConnection.State.AUTHORIZED));
+        } finally {
+            subscription.unsubscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void acknowledgeClientModeUpToFirstUnhandledMessage() throws Exception {
+        final String destination = String.format("/queue/%s", UUID.randomUUID());
+        final Set<String> received = ConcurrentHashMap.newKeySet();
+        final AsyncHolder<String> handled = AsyncHolder.create();
+        final AsyncHolder<String> acks = AsyncHolder.create();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        connection.addInterceptor(StompFrameContextInterceptors.builder().hasAction("ACK").frame(frame -> {
+            if (received.contains(frame.getHeader(StompHeader.ID))) {
+                acks.set(frame.getHeader(StompHeader.ID));
+            }
+        }).build());
+
+        final StompSubscription subscription = connection.createSubscription(
+                destination,
+                c -> c.getFrame().getHeader(GROUP_HEADER),
+                PARTITIONS,
+                c -> {
+                    received.add(c.getFrame().getHeader(StompHeader.ACK));
+                    if ("0".equals(c.getFrame().getBodyAsString())) {
+                        release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } else {
+                        handled.set(c.getFrame().getHeader(StompHeader.ACK));
+                    }
+                    return true;
+                }
+        );
+        subscription.getSubscribeFrame().setAckMode(StompAckMode.CLIENT);
+
+        try {
+            assertTrue(
+                    "Subscription failed",
+                    subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            Promise<?> promise = null;
+            for (int message = 0; message < 2; message++) {
+                final SendFrame frame = new SendFrame(destination, String.valueOf(message));
+                frame.setHeader(GROUP_HEADER, String.valueOf(message));
+                promise = connection.transmitFrame(frame);
+            }
+            assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            assertTrue("Message missing", handled.expect(1, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            Thread.sleep(ACK_WAIT);
+            assertThat(acks.getCount(), is(0));
+
+            release.countDown();
+            assertTrue("Ack missing", acks.expect(1, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertThat(acks.get(0), is(equalTo(handled.get(0))));
+        } finally {
+            release.countDown();
+            subscription.unsubscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void dispatchBatches() throws Exception {
+        final String destination = String.format("/queue/%s", UUID.randomUUID());
+        final AsyncHolder<Integer> holder = AsyncHolder.create();
+        final AsyncHolder<Integer> batchSizes = AsyncHolder.create();
+
+        final StompSubscription subscription = connection.createSubscription(
+                destination,
+                new StompBatchPolicy(contexts -> {
+                    batchSizes.set(contexts.size());
+                    final List<Boolean> results = new ArrayList<>();
+                    for (final StompFrameContext context : contexts) {
+                        holder.set(Integer.valueOf(context.getFrame().getBodyAsString()));
+                        results.add(true);
+                    }
+                    return results;
+                }, BATCH_SIZE, BATCH_LINGER)
+        );
+
+        try {
+            assertTrue(
+                    "Subscription failed",
+                    subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            Promise<?> promise = null;
+            for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                promise = connection.send(destination, String.valueOf(message));
+            }
+            assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            assertTrue("Messages missing", holder.expect(ORDERED_MESSAGES, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                assertThat(holder.get(message), is(equalTo(message)));
+            }
+
+            boolean batched = false;
+            for (int index = 0; index < batchSizes.getCount(); index++) {
+                assertTrue(batchSizes.get(index) <= BATCH_SIZE);
+                batched = batched || batchSizes.get(index) > 1;
+            }
+            assertTrue("No frames have been batched", batched);
+        } finally {
+            subscription.unsubscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void resolveReceiptsById() throws Exception {
+        final StompContext context = new StompContext();
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            final AtomicInteger offeredReceipts = new AtomicInteger();
+            current.awaitFrame(c -> {
+                if (StompAction.RECEIPT.value().equals(c.getFrame().getAction())) {
+                    offeredReceipts.incrementAndGet();
+                }
+                return false;
+            });
+
+            final String destination = String.format("/queue/%s", UUID.randomUUID());
+            final List<Promise<StompFrameContext>> promises = new ArrayList<>();
+            for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                promises.add(current.send(destination, String.valueOf(message)));
+            }
+
+            for (final Promise<StompFrameContext> promise : promises) {
+                assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                assertThat(promise.get().getFrame().getAction(), is(equalTo(StompAction.RECEIPT.value())));
+            }
+            assertTrue(current.getReceiptJobs().isEmpty());
+            assertThat(offeredReceipts.get(), is(0));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void batchReceipts() throws Exception {
+        final StompContext context = new StompContext();
+        context.setReceiptInterval(RECEIPT_INTERVAL);
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            final AsyncHolder<Boolean> receipts = AsyncHolder.create();
+            current.addInterceptor(
+                    StompFrameContextInterceptors.builder().hasAction("RECEIPT").match(receipts::set).build()
+            );
+
+            final String destination = String.format("/queue/%s", UUID.randomUUID());
+            final List<Promise<StompFrameContext>> promises = new ArrayList<>();
+            for (int message = 0; message < ORDERED_MESSAGES; message++) {
+                promises.add(current.send(destination, String.valueOf(message)));
+            }
+
+            for (final Promise<StompFrameContext> promise : promises) {
+                assertTrue("Send failed", promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            assertTrue(
+                    "Requested " + receipts.getCount() + " receipts for " + ORDERED_MESSAGES + " frames",
+                    receipts.getCount() <= ORDERED_MESSAGES / 2
+            );
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void confirmReceiptBatchBeforeHeldFrames() throws Exception {
+        final StompContext context = new StompContext();
+        context.setReceiptInterval(RECEIPT_INTERVAL);
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            final String destination = String.format("/queue/%s", UUID.randomUUID());
+
+            final List<Promise<StompFrameContext>> promises = new ArrayList<>();
+            for (int message = 0; message < RECEIPT_INTERVAL / 2; message++) {
+                promises.add(current.send(destination, String.valueOf(message)));
+            }
+            final Promise<StompFrameContext> held = current.transmitFrame(
+                    new SendFrame(destination, "Held"),
+                    () -> false
+            );
+
+            for (final Promise<StompFrameContext> promise : promises) {
+                assertTrue("Send not confirmed", promise.await(CONFIRM_SECONDS, TimeUnit.SECONDS));
+            }
+            assertThat(held.isDone(), is(false));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void boundTransmitQueue() throws Exception {
+        final StompContext context = new StompContext();
+        context.setTransmitQueueLimit(QUEUE_LIMIT);
+
+        context.setOverflowPolicy(StompOverflowPolicy.FAIL);
+        final StompConnection failing = new StompConnection(context, "localhost", BROKER.getPort());
+        final List<Promise<StompFrameContext>> failed = fillTransmitQueue(failing);
+        assertThat(failing.getTransmitQueue().getDepth(), is(QUEUE_LIMIT));
+        assertTrue(failing.getTransmitQueue().getBytes() > 0);
+        for (int index = 0; index < failed.size(); index++) {
+            assertRejected(failed.get(index), index >= QUEUE_LIMIT);
+        }
+
+        context.setOverflowPolicy(StompOverflowPolicy.DROP_OLDEST);
+        final StompConnection dropping = new StompConnection(context, "localhost", BROKER.getPort());
+        final List<Promise<StompFrameContext>> dropped = fillTransmitQueue(dropping);
+        assertThat(dropping.getTransmitQueue().getDepth(), is(QUEUE_LIMIT));
+        assertThat(dropping.getTransmitQueue().getDropped(), is((long) QUEUE_LIMIT));
+        for (int index = 0; index < dropped.size(); index++) {
+            assertRejected(dropped.get(index), index < QUEUE_LIMIT);
+        }
+    }
+
+    @Test
+    public void boundTransmitQueueForConcurrentProducers() throws Exception {
+        final StompContext context = new StompContext();
+        context.setTransmitQueueLimit(QUEUE_LIMIT);
+        context.setOverflowPolicy(StompOverflowPolicy.FAIL);
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+        for (int producer = 0; producer < PRODUCERS; producer++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int index = 0; index < QUEUE_LIMIT; index++) {
+                    current.send("/queue/test", String.valueOf(index));
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : producers) {
+            thread.join();
+        }
+
+        assertThat(current.getTransmitQueue().getDepth(), is(QUEUE_LIMIT));
+        assertThat(countJobs(current, StompConnection.State.AUTHORIZED), is(QUEUE_LIMIT));
+    }
+
+    @Test
+    public void keepProtocolFramesWhenDroppingOldest() throws Exception {
+        final StompContext context = new StompContext();
+        context.setTransmitQueueLimit(QUEUE_LIMIT);
+        context.setOverflowPolicy(StompOverflowPolicy.DROP_OLDEST);
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        current.connect();
+        assertThat(current.getState(), is(StompConnection.State.CONNECTING));
+
+        final Promise<Void> subscribed = current.createSubscription("/queue/test", c -> true).subscribe();
+        final List<Promise<StompFrameContext>> dropped = fillTransmitQueue(current);
+
+        assertThat(current.getTransmitQueue().getDepth(), is(QUEUE_LIMIT));
+        assertThat(current.getTransmitQueue().getDropped(), is((long) QUEUE_LIMIT + 1));
+        assertThat(subscribed.isDone(), is(false));
+        for (int index = 0; index < dropped.size(); index++) {
+            assertRejected(dropped.get(index), index <= QUEUE_LIMIT);
+        }
+    }
+
+    @Test
+    public void transmitControlFramesFirst() throws Exception {
+        final StompContext context = new StompContext();
+        context.setControlFrameBurst(2);
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        for (int index = 0; index < QUEUE_LIMIT; index++) {
+            current.send("/queue/test", String.valueOf(index));
+        }
+        for (int index = 0; index < QUEUE_LIMIT; index++) {
+            current.transmitFramesWithoutReceipt(Collections.singletonList(new AckFrame(String.valueOf(index))));
+        }
+
+        final List<String> actions = new ArrayList<>();
+        for (final StompFrameTransmitJob job : current.getTransmitQueue()) {
+            actions.add(job.getContext().getFrame().getAction());
+        }
+
+        assertThat(actions.size(), is(QUEUE_LIMIT * 2));
+        assertThat(actions.subList(0, 3), is(equalTo(Arrays.asList("ACK", "ACK", "SEND"))));
+    }
+
+    @Test
+    public void dropAcknowledgementsOnClose() throws Exception {
+        final StompContext context = new StompContext();
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        current.send("/queue/test", "Kept");
+        for (int index = 0; index < QUEUE_LIMIT; index++) {
+            current.transmitFramesWithoutReceipt(Collections.singletonList(new AckFrame(String.valueOf(index))));
+        }
+        assertThat(current.getTransmitQueue().getDepth(), is(QUEUE_LIMIT + 1));
+
+        current.close();
+
+        assertThat(current.getTransmitQueue().getDepth(), is(1));
+        assertThat(
+                current.getTransmitQueue().iterator().next().getContext().getFrame().getAction(),
+                is(equalTo("SEND"))
+        );
+    }
+
+    @Test
+    public void failUnconfirmedFramesOnClose() throws Exception {
+        final StompContext context = new StompContext();
+        context.setReceiptInterval(RECEIPT_INTERVAL);
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        final Promise<StompFrameContext> promise = current.send("/queue/test", "Unconfirmed");
+        final StompFrameTransmitJob job = current.getTransmitQueue().iterator().next();
+        current.getTransmitQueue().remove(job);
+        current.trackReceiptBatch(job, false);
+        assertThat(promise.isDone(), is(false));
+
+        current.close();
+
+        assertThat(promise.isDone(), is(true));
+        assertThat(promise.await(CONFIRM_SECONDS, TimeUnit.SECONDS), is(false));
+    }
+
+    @Test
+    public void groupTransmitJobsByState() throws Exception {
+        final StompContext context = new StompContext();
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        for (int index = 0; index < QUEUE_LIMIT; index++) {
+            current.send("/queue/test", String.valueOf(index));
+        }
+        current.transmitFrame(new SendFrame("/queue/test", "Conditional"), () -> true);
+
+        assertThat(countJobs(current, StompConnection.State.CONNECTED), is(1));
+        assertThat(countJobs(current, StompConnection.State.AUTHORIZED), is(QUEUE_LIMIT + 1));
+    }
+
+    @Test
+    public void keepOrderAcrossTransmitGroups() throws Exception {
+        final StompContext context = new StompContext();
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        current.send("/queue/test", "0");
+        current.transmitFrame(new SendFrame("/queue/test", "1"), () -> true);
+        current.send("/queue/test", "2");
+        current.transmitFrame(new SendFrame("/queue/test", "3"), () -> true);
+
+        final Iterator<StompFrameTransmitJob> iterator = current.getTransmitQueue().iterator(
+                StompConnection.State.AUTHORIZED
+        );
+        for (final String body : Arrays.asList("0", "1", "2", "3")) {
+            assertThat(iterator.next().getContext().getFrame().getBodyAsString(), is(equalTo(body)));
+        }
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+    @Test
+    public void indexSubscriptionsById() throws Exception {
+        final StompContext context = new StompContext();
+        final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+
+        final List<StompSubscription> created = new ArrayList<>();
+        for (int index = 0; index < LARGE_SUBSCRIPTIONS; index++) {
+            created.add(current.createSubscription("/queue/test", c -> true));
+        }
+        assertThat(current.getSubscriptions().size(), is(LARGE_SUBSCRIPTIONS));
+        assertThat(current.getSubscriptionsForRegistration().size(), is(LARGE_SUBSCRIPTIONS));
+
+        for (final StompSubscription subscription : created) {
+            assertThat(current.getSubscription(subscription.getId()), is(subscription));
+        }
+
+        for (int index = 0; index < LARGE_SUBSCRIPTIONS; index += 2) {
+            assertThat(current.removeSubscription(created.get(index).getId()), is(created.get(index)));
+        }
+        for (int index = 0; index < LARGE_SUBSCRIPTIONS; index++) {
+            final StompSubscription subscription = created.get(index);
+            if (index % 2 == 0) {
+                assertThat(current.getSubscription(subscription.getId()), is(nullValue()));
+            } else {
+                assertThat(current.getSubscription(subscription.getId()), is(subscription));
+            }
+        }
+        assertThat(current.getSubscriptions().size(), is(LARGE_SUBSCRIPTIONS / 2));
+        assertThat(current.getSubscriptionsForRegistration().size(), is(LARGE_SUBSCRIPTIONS / 2));
+    }
+
     @Test
     @Ignore
     public void lazyConnect() throws Exception {
@@ -260,6 +858,186 @@ public class StompConnectionTest {
         }
     }
 
+    @Test
+    public void connectWithoutBlockingEventLoop() throws Exception {
+        final StompContext context = new StompContext();
+        context.setConnectTimeout(CONNECT_TIMEOUT);
+        context.start();
+
+        try {
+            final StompConnection unresolvable = new StompConnection(context, "broker.invalid", BROKER.getPort());
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            assertThat(unresolvable.getEventLoop(), is(current.getEventLoop()));
+
+            final Promise<Void> failed = unresolvable.connect();
+            assertTrue(
+                    "Connect failed",
+                    current.connect().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+            assertTrue(
+                    "Send failed",
+                    current.send("/queue/test", randomUUID().toString()).await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            failed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(failed.isDone());
+            assertThat(unresolvable.getState(), is(StompConnection.State.DISCONNECTED));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void reconnectWithoutBackoffAfterClose() throws Exception {
+        final StompContext context = new StompContext();
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            assertTrue(
+                    "Connect failed",
+                    current.connect().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            current.close();
+            assertThat(current.getState(), is(StompConnection.State.DISCONNECTED));
+
+            assertTrue(
+                    "Reconnect failed",
+                    current.connect().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+            assertThat(current.getState(), is(StompConnection.State.AUTHORIZED));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void pipelineSubscriptionsBehindConnect() throws Exception {
+        final StompContext context = new StompContext();
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            final String message = randomUUID().toString();
+            final AsyncHolder<String> holder = AsyncHolder.create();
+
+            final List<StompSubscription> subscriptions = new ArrayList<>();
+            for (int index = 0; index < PIPELINED_SUBSCRIPTIONS; index++) {
+                subscriptions.add(current.createSubscription(String.format("/queue/%s", randomUUID()), c -> {
+                    holder.set(c.getFrame().getBodyAsString());
+                    return true;
+                }));
+            }
+
+            assertTrue(
+                    "Connect failed",
+                    current.connect().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+            assertThat(current.getState(), is(StompConnection.State.AUTHORIZED));
+            for (final StompSubscription subscription : subscriptions) {
+                assertTrue(
+                        "Subscription failed",
+                        subscription.subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                );
+            }
+
+            final StompSubscription last = subscriptions.get(subscriptions.size() - 1);
+            assertTrue(
+                    "Send failed",
+                    current.send(last.getDestination(), message).await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+            assertThat(holder.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(equalTo(message)));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void offerHeartBeatsOnlyIfConfigured() throws Exception {
+        final StompContext context = new StompContext();
+        final StompConnection disabled = new StompConnection(context, "localhost", BROKER.getPort());
+        assertThat(disabled.getConnectFrame().getHeader(StompHeader.HEART_BEAT), is(nullValue()));
+
+        context.setHeartBeatOutgoing(HEART_BEAT);
+        context.setHeartBeatIncoming(HEART_BEAT);
+        context.setStompVersions(Collections.singletonList(StompVersion.VERSION_1_0));
+        final StompConnection legacy = new StompConnection(context, "localhost", BROKER.getPort());
+        assertThat(legacy.getConnectFrame().getHeader(StompHeader.HEART_BEAT), is(nullValue()));
+    }
+
+    @Test
+    public void keepIdleConnectionWithHeartBeats() throws Exception {
+        final StompContext context = new StompContext();
+        context.setHeartBeatOutgoing(HEART_BEAT);
+        context.setHeartBeatIncoming(HEART_BEAT);
+        context.start();
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            assertThat(current.getConnectFrame().getHeartBeat(), is(new StompHeartBeat(HEART_BEAT, HEART_BEAT)));
+            assertTrue(
+                    "Connect failed",
+                    current.connect().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            final long written = current.getSerializer().getLastWrite();
+            Thread.sleep(HEART_BEAT * HEART_BEAT_INTERVALS);
+
+            assertThat(current.getState(), is(StompConnection.State.AUTHORIZED));
+            assertTrue(current.getSerializer().getLastWrite() > written);
+            assertTrue(
+                    "Send failed",
+                    current.send("/queue/test", randomUUID().toString()).await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Test
+    public void pauseReadAboveHighWaterMark() throws Exception {
+        final StompContext context = new StompContext();
+        context.setDispatchHighWaterMark(HIGH_WATER_MARK);
+        context.setDispatchLowWaterMark(LOW_WATER_MARK);
+        context.start();
+
+        final String destination = String.format("/queue/%s", UUID.randomUUID());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(BACKLOG_MESSAGES);
+
+        try {
+            final StompConnection current = new StompConnection(context, "localhost", BROKER.getPort());
+            assertTrue(
+                    "Subscription failed",
+                    current.createSubscription(destination, c -> {
+                        release.await();
+                        handled.countDown();
+                        return true;
+                    }).subscribe().await(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            );
+
+            for (int index = 0; index < BACKLOG_MESSAGES; index++) {
+                current.send(destination, randomUUID().toString());
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (!current.isReadPaused() && System.nanoTime() < deadline) {
+                Thread.sleep(RECEIPT_INTERVAL);
+            }
+            assertTrue("Read not paused", current.isReadPaused());
+            assertThat(current.getPendingDispatch(), is(HIGH_WATER_MARK));
+
+            release.countDown();
+            assertTrue("Backlog not handled", handled.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertThat(current.isReadPaused(), is(false));
+            assertThat(current.getState(), is(StompConnection.State.AUTHORIZED));
+        } finally {
+            release.countDown();
+            context.stop();
+        }
+    }
+
     @Test
     @Ignore
     public void reconnect() throws Exception {
@@ -307,4 +1085,32 @@ public class StompConnectionTest {
 
         return connection;
     }
+
+    private static List<Promise<StompFrameContext>> fillTransmitQueue(final StompConnection target) {
+        final List<Promise<StompFrameContext>> promises = new ArrayList<>();
+        for (int index = 0; index < QUEUE_LIMIT * 2; index++) {
+            promises.add(target.send("/queue/test", String.valueOf(index)));
+        }
+        return promises;
+    }
+
+    private static void assertRejected(final Promise<StompFrameContext> promise, final boolean rejected)
+            throws Exception {
+        if (rejected) {
+            assertThat(promise.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), is(false));
+            assertThat(promise.isDone(), is(true));
+        } else {
+            assertThat(promise.isDone(), is(false));
+        }
+    }
+
+    private static int countJobs(final StompConnection target, final StompConnection.State state) {
+        int count = 0;
+        final Iterator<StompFrameTransmitJob> iterator = target.getTransmitQueue().iterator(state);
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
 }
@@ -0,0 +1,152 @@
+package de.lancom.systems.stomp.core.wire;
+
+import static de.lancom.systems.stomp.core.wire.Constants.CONTEXT;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class StompDeserializerTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Test
+    public void readChunkedFrameWithContentLength() throws Exception {
+        final byte[] body = createBody(1024 * 1024);
+        final ChunkedChannel channel = new ChunkedChannel();
+        final StompDeserializer deserializer = new StompDeserializer(CONTEXT, channel);
+
+        final byte[] data = encode("MESSAGE\nsubscription:1\ncontent-length:" + body.length + "\n\n", body);
+
+        StompFrame frame = null;
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            assertThat(frame, is(nullValue()));
+            channel.offer(Arrays.copyOfRange(data, offset, Math.min(offset + CHUNK_SIZE, data.length)));
+            frame = deserializer.readFrame();
+        }
+
+        assertThat(frame, is(notNullValue()));
+        assertThat(frame.getAction(), is(equalTo("MESSAGE")));
+        assertThat(frame.getHeader(StompHeader.SUBSCRIPTION), is(equalTo("1")));
+        assertThat(Arrays.equals(frame.getBody(), body), is(true));
+        assertThat(deserializer.readFrame(), is(nullValue()));
+    }
+
+    @Test
+    public void readChunkedFrameWithoutContentLength() throws Exception {
+        final byte[] body = createBody(64 * 1024);
+        final ChunkedChannel channel = new ChunkedChannel();
+        final StompDeserializer deserializer = new StompDeserializer(CONTEXT, channel);
+
+        final byte[] data = encode("\n\r\nMESSAGE\r\nsubscription:a\\cb\n\n", body);
+
+        StompFrame frame = null;
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            assertThat(frame, is(nullValue()));
+            channel.offer(Arrays.copyOfRange(data, offset, Math.min(offset + CHUNK_SIZE, data.length)));
+            frame = deserializer.readFrame();
+        }
+
+        assertThat(frame, is(notNullValue()));
+        assertThat(frame.getHeader(StompHeader.SUBSCRIPTION), is(equalTo("a:b")));
+        assertThat(Arrays.equals(frame.getBody(), body), is(true));
+    }
+
+    @Test
+    public void readMultipleFramesFromSingleChunk() throws Exception {
+        final ChunkedChannel channel = new ChunkedChannel();
+        final StompDeserializer deserializer = new StompDeserializer(CONTEXT, channel);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(encode("RECEIPT\nreceipt-id:1\n\n", new byte[0]));
+        stream.write(encode("RECEIPT\nreceipt-id:2\n\n", new byte[0]));
+        stream.write("\n\nRECEIPT\nreceipt".getBytes(StandardCharsets.UTF_8));
+        channel.offer(stream.toByteArray());
+
+        assertThat(deserializer.readFrame().getHeader(StompHeader.RECEIPT_ID), is(equalTo("1")));
+        assertThat(deserializer.readFrame().getHeader(StompHeader.RECEIPT_ID), is(equalTo("2")));
+        assertThat(deserializer.readFrame(), is(nullValue()));
+
+        channel.offer(encode("-id:3\n\n", new byte[0]));
+        assertThat(deserializer.readFrame().getHeader(StompHeader.RECEIPT_ID), is(equalTo("3")));
+    }
+
+    @Test
+    public void updateLastReadOnlyForReceivedBytes() throws Exception {
+        final ChunkedChannel channel = new ChunkedChannel();
+        final StompDeserializer deserializer = new StompDeserializer(CONTEXT, channel);
+        final long created = deserializer.getLastRead();
+
+        assertThat(deserializer.readFrame(), is(nullValue()));
+        assertThat(deserializer.getLastRead(), is(created));
+
+        Thread.sleep(1);
+        channel.offer("\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(deserializer.readFrame(), is(nullValue()));
+        final long heartBeat = deserializer.getLastRead();
+        assertTrue(heartBeat - created > 0);
+
+        assertThat(deserializer.readFrame(), is(nullValue()));
+        assertThat(deserializer.getLastRead(), is(heartBeat));
+    }
+
+    private static byte[] createBody(final int length) {
+        final byte[] body = new byte[length];
+        for (int index = 0; index < body.length; index++) {
+            body[index] = (byte) ('a' + index % 26);
+        }
+        return body;
+    }
+
+    private static byte[] encode(final String head, final byte[] body) throws Exception {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(head.getBytes(StandardCharsets.UTF_8));
+        stream.write(body);
+        stream.write(StompEncoding.TERMINATOR);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Channel that only returns the data offered so far, similar to a non blocking socket.
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+
+        void offer(final byte[] data) {
+            final ByteBuffer next = ByteBuffer.allocate(pending.remaining() + data.length);
+            next.put(pending);
+            next.put(data);
+            next.flip();
+            pending = next;
+        }
+
+        @Override
+        public int read(final ByteBuffer target) {
+            final int count = Math.min(target.remaining(), pending.remaining());
+            for (int index = 0; index < count; index++) {
+                target.put(pending.get());
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package de.lancom.systems.stomp.core.wire;
+
+import static de.lancom.systems.stomp.core.wire.Constants.CONTEXT;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.lancom.systems.stomp.core.wire.frame.SendFrame;
+import org.junit.Test;
+
+public class StompSerializerTest {
+
+    private static final int WARMUP_FRAMES = 200000;
+    private static final int MEASURED_FRAMES = 100000;
+    private static final double MAX_BYTES_PER_FRAME = 64;
+    private static final int LARGE_BODY = 64 * 1024;
+    private static final double MAX_BYTES_PER_LARGE_FRAME = 128;
+
+    @Test
+    public void writeEscapedFrame() throws Exception {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final StompSerializer serializer = new StompSerializer(CONTEXT, Channels.newChannel(stream));
+
+        final SendFrame frame = new SendFrame("/queue/a:b\n\u00e4\u20ac\ud834\udd1e", "Test");
+        frame.setHeader("custom", "back\\slash\r");
+        serializer.writeFrame(frame);
+        serializer.flush();
+
+        final StompDeserializer deserializer = new StompDeserializer(
+                CONTEXT,
+                Channels.newChannel(new ByteArrayInputStream(stream.toByteArray()))
+        );
+        final StompFrame result = deserializer.readFrame();
+
+        assertThat(result.getAction(), is(equalTo(frame.getAction())));
+        assertThat(result.getBodyAsString(), is(equalTo("Test")));
+        assertThat(result.getContentLength(), is(equalTo(4)));
+
+        result.removeHeader(StompHeader.CONTENT_LENGTH);
+        assertThat(result.getHeaders(), is(equalTo(frame.getHeaders())));
+    }
+
+    @Test
+    public void skipHeartBeatsBetweenFrames() throws Exception {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final StompSerializer serializer = new StompSerializer(CONTEXT, Channels.newChannel(stream));
+
+        serializer.writeHeartBeat();
+        serializer.writeFrame(new SendFrame("/queue/test", "First"));
+        serializer.writeHeartBeat();
+        serializer.writeHeartBeat();
+        serializer.writeFrame(new SendFrame("/queue/test", "Second"));
+        serializer.flush();
+
+        final StompDeserializer deserializer = new StompDeserializer(
+                CONTEXT,
+                Channels.newChannel(new ByteArrayInputStream(stream.toByteArray()))
+        );
+        assertThat(deserializer.readFrame().getBodyAsString(), is(equalTo("First")));
+        assertThat(deserializer.readFrame().getBodyAsString(), is(equalTo("Second")));
+    }
+
+    @Test
+    public void writeFrameWithoutAllocation() throws Exception {
+        final StompSerializer serializer = new StompSerializer(CONTEXT, new DiscardingChannel());
+        final SendFrame frame = new SendFrame("/queue/test", new byte[1024]);
+        frame.setHeader(StompHeader.RECEIPT, "9f0b0a6e-2d53-4b5c-a7c3-2e8d4b1e6f10");
+
+        for (int index = 0; index < WARMUP_FRAMES; index++) {
+            serializer.writeFrame(frame);
+            serializer.flush();
+        }
+
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(thread);
+        for (int index = 0; index < MEASURED_FRAMES; index++) {
+            serializer.writeFrame(frame);
+            serializer.flush();
+        }
+        final long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        final double bytesPerFrame = (double) allocated / MEASURED_FRAMES;
+        assertTrue("Allocated " + bytesPerFrame + " bytes per frame", bytesPerFrame < MAX_BYTES_PER_FRAME);
+    }
+
+    @Test
+    public void writeLargeFrameWithoutCopy() throws Exception {
+        final StompSerializer serializer = new StompSerializer(CONTEXT, new DiscardingChannel());
+        final SendFrame frame = new SendFrame("/queue/test", new byte[LARGE_BODY]);
+        frame.setHeader(StompHeader.RECEIPT, "9f0b0a6e-2d53-4b5c-a7c3-2e8d4b1e6f10");
+
+        for (int index = 0; index < WARMUP_FRAMES; index++) {
+            serializer.writeFrame(frame);
+            serializer.flush();
+        }
+
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(thread);
+        for (int index = 0; index < MEASURED_FRAMES; index++) {
+            serializer.writeFrame(frame);
+            serializer.flush();
+        }
+        final long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        final double bytesPerFrame = (double) allocated / MEASURED_FRAMES;
+        assertTrue("Allocated " + bytesPerFrame + " bytes per frame", bytesPerFrame < MAX_BYTES_PER_LARGE_FRAME);
+    }
+
+    @Test
+    public void writeLargeBodyUsingGatheringWrite() throws Exception {
+        final RecordingChannel channel = new RecordingChannel();
+        final StompSerializer serializer = new StompSerializer(CONTEXT, channel);
+
+        final byte[] body = new byte[10 * 1024 * 1024];
+        Arrays.fill(body, (byte) 'x');
+        serializer.writeFrame(new SendFrame("/queue/test", body));
+        serializer.flush();
+
+        assertThat(channel.getGatheredArrays().contains(body), is(true));
+
+        final StompDeserializer deserializer = new StompDeserializer(
+                CONTEXT,
+                Channels.newChannel(new ByteArrayInputStream(channel.getStream().toByteArray()))
+        );
+        assertThat(Arrays.equals(deserializer.readFrame().getBody(), body), is(true));
+    }
+
+    @Test
+    public void keepUnwrittenBytesOnPartialWrite() throws Exception {
+        final RecordingChannel channel = new RecordingChannel();
+        final StompSerializer serializer = new StompSerializer(CONTEXT, channel);
+
+        final byte[] body = new byte[64 * 1024];
+        Arrays.fill(body, (byte) 'y');
+
+        channel.setAvailable(100);
+        serializer.writeFrame(new SendFrame("/queue/first", "First"));
+        serializer.writeFrame(new SendFrame("/queue/second", body));
+        serializer.writeFrame(new SendFrame("/queue/third", "Third"));
+        assertThat(serializer.flush(), is(false));
+        assertThat(serializer.isPending(), is(true));
+
+        while (serializer.isPending()) {
+            channel.setAvailable(1000);
+            serializer.flush();
+        }
+
+        final StompDeserializer deserializer = new StompDeserializer(
+                CONTEXT,
+                Channels.newChannel(new ByteArrayInputStream(channel.getStream().toByteArray()))
+        );
+        assertThat(deserializer.readFrame().getBodyAsString(), is(equalTo("First")));
+        assertThat(Arrays.equals(deserializer.readFrame().getBody(), body), is(true));
+        assertThat(deserializer.readFrame().getBodyAsString(), is(equalTo("Third")));
+    }
+
+    /**
+     * Gathering channel that accepts and drops all data.
+     */
+    private static class DiscardingChannel implements GatheringByteChannel {
+
+        @Override
+        public long write(final ByteBuffer[] sources, final int offset, final int length) {
+            long count = 0;
+            for (int index = offset; index < offset + length; index++) {
+                count += write(sources[index]);
+            }
+            return count;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(final ByteBuffer source) {
+            final int count = source.remaining();
+            source.position(source.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Gathering channel that records written data and the segments it received.
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+
+        private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private final List<byte[]> gatheredArrays = new ArrayList<>();
+        private int available = Integer.MAX_VALUE;
+
+        void setAvailable(final int available) {
+            this.available = available;
+        }
+
+        ByteArrayOutputStream getStream() {
+            return stream;
+        }
+
+        List<byte[]> getGatheredArrays() {
+            return gatheredArrays;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] sources, final int offset, final int length) {
+            long count = 0;
+            for (int index = offset; index < offset + length; index++) {
+                gatheredArrays.add(sources[index].array());
+                count += write(sources[index]);
+            }
+            return count;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(final ByteBuffer source) {
+            final int count = Math.min(source.remaining(), available);
+            stream.write(source.array(), source.arrayOffset() + source.position(), count);
+            source.position(source.position() + count);
+            available -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
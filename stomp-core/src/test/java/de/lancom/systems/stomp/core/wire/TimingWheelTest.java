@@ -0,0 +1,92 @@
+package de.lancom.systems.stomp.core.wire;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.lancom.systems.stomp.core.util.TimingWheel;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void expireEntriesInDeadlineOrder() {
+        final TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS);
+        final long now = System.nanoTime();
+        final AtomicInteger fired = new AtomicInteger();
+
+        final int count = 10000;
+        for (int index = 0; index < count; index++) {
+            final long deadline = now + index * TICK;
+            wheel.schedule(deadline, () -> {
+                assertThat(fired.getAndIncrement() <= (int) ((deadline - now) / TICK), is(true));
+                return true;
+            });
+        }
+        final TimingWheel.Entry cancelled = wheel.schedule(now + TICK, () -> true);
+        cancelled.cancel();
+
+        int expired = 0;
+        for (long time = now; time <= now + (count + 1) * TICK; time += TICK / 2) {
+            expired += wheel.advance(time);
+            assertThat(expired, is(equalTo(fired.get())));
+        }
+
+        assertThat(expired, is(equalTo(count)));
+        assertThat(wheel.isEmpty(), is(true));
+    }
+
+    @Test
+    public void unlinkCancelledEntriesAndReportDelay() {
+        final TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS);
+        final long now = System.nanoTime();
+
+        assertThat(wheel.getDelay(now), is(equalTo(Long.MAX_VALUE)));
+
+        final TimingWheel.Entry first = wheel.schedule(now + 2 * TICK, () -> true);
+        final TimingWheel.Entry second = wheel.schedule(now + 2 * TICK, () -> true);
+        wheel.schedule(now + TimeUnit.SECONDS.toNanos(2), () -> true);
+        assertThat(wheel.getDelay(now), is(equalTo(0L)));
+
+        wheel.advance(now);
+        assertThat(wheel.getDelay(now) > 0, is(true));
+        assertThat(wheel.getDelay(now) <= 3 * TICK, is(true));
+
+        first.cancel();
+        second.cancel();
+        wheel.advance(now);
+        assertThat(wheel.getDelay(now) > 3 * TICK, is(true));
+
+        assertThat(wheel.advance(now + TimeUnit.SECONDS.toNanos(3)), is(equalTo(1)));
+        assertThat(wheel.isEmpty(), is(true));
+        assertThat(wheel.getDelay(now), is(equalTo(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void expireDeadlinesBeyondRangeOnTime() {
+        final TimingWheel wheel = new TimingWheel(1, TimeUnit.NANOSECONDS);
+        final long now = System.nanoTime();
+        final long deadline = now + (1L << 25);
+        final AtomicBoolean fired = new AtomicBoolean();
+
+        wheel.schedule(deadline, () -> {
+            fired.set(true);
+            return true;
+        });
+
+        wheel.advance(now);
+        wheel.advance(deadline - 2);
+        assertThat(fired.get(), is(false));
+        assertThat(wheel.isEmpty(), is(false));
+
+        wheel.advance(deadline + 1);
+        assertThat(fired.get(), is(true));
+        assertThat(wheel.isEmpty(), is(true));
+    }
+}